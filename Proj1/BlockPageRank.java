@@ -0,0 +1,184 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Several PageRank problems on one CSRGraph, iterated together as a block of rank columns.
+ *
+ * Column j solves x_j = (1 - df_j) * t_j + df_j * A x_j with the iteration of
+ * SequentialPageRank.calculatePageRank, where t_j is the teleport distribution of the column:
+ * uniform for plain PageRank, or concentrated on a seed set for personalized PageRank. The
+ * columns of a URL are stored next to each other, ranks[v * k + j], so every in-link is read
+ * once per iteration and updates all k columns from one contiguous run of values. The cost of
+ * walking the links is thus shared by the whole block instead of being paid once per problem.
+ *
+ * A column can be frozen once it has converged; it then keeps its values while the others go on,
+ * so every column ends exactly as if it had been iterated on its own. A column with a uniform
+ * teleport and the same damping factor gives bit for bit the ranks of the csr engine.
+ */
+public class BlockPageRank {
+    // graph with inbound lists and out-degrees
+    private CSRGraph graph;
+    // number of columns
+    int k;
+    // damping factor of each column
+    private double df[];
+    // (1 - df_j) * t_j[v] at [v * k + j], null if every teleport is uniform
+    private double teleport[];
+    // (1 - df_j) / size, the teleport term of the uniform columns
+    private double uniform[];
+    // current and next rank values, [v * k + j]
+    double ranks[];
+    private double next[];
+    // rank value divided by out-degree, [v * k + j]
+    private double contrib[];
+    // columns that are no longer updated
+    boolean frozen[];
+
+    /**
+     * @param graph graph to rank
+     * @param df damping factor of each column
+     * @param weights teleport distribution of each column at [v * k + j], each column summing
+     * to 1, or null for uniform teleports
+     * @throws IOException if the size * k values of a rank vector do not fit in one array
+     */
+    BlockPageRank(CSRGraph graph, double df[], double weights[]) throws IOException {
+        int size = graph.size;
+        if ((long)size * df.length > Integer.MAX_VALUE - 8)
+            throw new IOException("too many columns (" + df.length + ") for a graph of " + size + " URLs");
+        this.graph = graph;
+        this.df    = df;
+        this.k     = df.length;
+        uniform = new double[k];
+        for (int j = 0; j < k; j++)
+            uniform[j] = (1.0 - df[j])/(double)size;
+        if (weights != null) {
+            teleport = weights;
+            for (int v = 0; v < size; v++)
+                for (int j = 0; j < k; j++)
+                    teleport[v * k + j] *= 1.0 - df[j];
+        }
+
+        ranks   = new double[size * k];
+        next    = new double[size * k];
+        contrib = new double[size * k];
+        frozen  = new boolean[k];
+        Arrays.fill(ranks, 1.0/(double)size);
+    }
+
+    /**
+     * Read seed sets, one per line, as teleport distributions. A line lists URLs, each
+     * optionally followed by ":weight"; the teleport of the line is spread over its URLs in
+     * proportion to the weights, equally if none are given.
+     *
+     * @param file seed file name
+     * @param perm new number of each URL if the graph was renumbered, or null
+     * @return teleport weights at [v * k + j] for the k lines of the file
+     * @throws IOException if an error occurs
+     */
+    static double[] readSeeds(String file, int size, int perm[]) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                if (!line.trim().isEmpty())
+                    lines.add(line.trim());
+        }
+        if (lines.isEmpty())
+            throw new IOException("no seed sets in " + file);
+
+        int k = lines.size();
+        if ((long)size * k > Integer.MAX_VALUE - 8)
+            throw new IOException("too many seed sets for a graph of " + size + " URLs");
+        double weights[] = new double[size * k];
+        for (int j = 0; j < k; j++) {
+            double total = 0.0;
+            for (String seed : lines.get(j).split("\\s+")) {
+                int colon = seed.indexOf(':');
+                int url = Integer.parseInt(colon < 0 ? seed : seed.substring(0, colon));
+                double w = colon < 0 ? 1.0 : Double.parseDouble(seed.substring(colon + 1));
+                if (url < 0 || url >= size)
+                    throw new IOException("seed URL " + url + " out of range in line " + (j + 1));
+                if (w < 0.0)
+                    throw new IOException("negative seed weight in line " + (j + 1));
+                weights[(perm == null ? url : perm[url]) * k + j] += w;
+                total += w;
+            }
+            if (total <= 0.0)
+                throw new IOException("seed weights of line " + (j + 1) + " sum to 0");
+            for (int v = 0; v < size; v++)
+                weights[v * k + j] /= total;
+        }
+        return weights;
+    }
+
+    /**
+     * Compute the out-link shares of URLs lo .. hi - 1.
+     */
+    void scatter(int lo, int hi) {
+        int deg[] = graph.deg;
+        for (int u = lo; u < hi; ++u) {
+            for (int j = u * k; j < (u + 1) * k; ++j)
+                contrib[j] = deg[u] == 0 ? 0.0 : ranks[j] / (double)deg[u];
+        }
+    }
+
+    /**
+     * Pull the new rank values of URLs lo .. hi - 1 from their in-neighbours, all columns at once.
+     *
+     * @param l1 measure the change in the L1 norm, else in the L-infinity norm
+     * @return change of each column over the range
+     */
+    double[] gather(int lo, int hi, boolean l1) {
+        int offsets[] = graph.offsets;
+        int sources[] = graph.sources;
+        int deg[]     = graph.deg;
+        double pr[]       = new double[k];
+        double residual[] = new double[k];
+
+        for (int url = lo; url < hi; ++url) {
+            Arrays.fill(pr, 0.0);
+            for (int e = offsets[url]; e < offsets[url + 1]; ++e) {
+                int s = sources[e] * k;
+                for (int j = 0; j < k; ++j)
+                    pr[j] += contrib[s + j];
+            }
+
+            int base = url * k;
+            if (deg[url] == 0) {
+                for (int j = 0; j < k; ++j)
+                    pr[j] += ranks[base + j];
+            }
+
+            for (int j = 0; j < k; ++j) {
+                if (frozen[j]) {
+                    next[base + j] = ranks[base + j];
+                    continue;
+                }
+                double t = teleport == null ? uniform[j] : teleport[base + j];
+                next[base + j] = t + df[j] * pr[j];
+                double change = Math.abs(next[base + j] - ranks[base + j]);
+                residual[j] = l1 ? residual[j] + change : Math.max(residual[j], change);
+            }
+        }
+        return residual;
+    }
+
+    /**
+     * Make the values of the last gather the current ranks.
+     */
+    void swap() {
+        double t[] = ranks;
+        ranks = next;
+        next  = t;
+    }
+
+    /**
+     * Rank values of column j, indexed by URL.
+     */
+    double[] column(int j) {
+        double c[] = new double[graph.size];
+        for (int v = 0; v < c.length; v++)
+            c[v] = ranks[v * k + j];
+        return c;
+    }
+}
@@ -0,0 +1,510 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Compressed-sparse-row form of the inbound adjacency list.
+ *
+ * The in-neighbours of URL v are sources[offsets[v]] .. sources[offsets[v + 1] - 1], kept in the
+ * order their edges appear in the input file so that rank sums are accumulated in the same order
+ * as the HashMap version. URLs are assumed to be numbered 0 .. size - 1, one line per URL.
+ *
+ * The arrays can be saved once in a binary file and memory-mapped by later runs instead of
+ * parsing the text again. All values are little-endian 32-bit integers:
+ *
+ *   magic "PRGB", version, size, edges
+ *   offsets[size + 1]
+ *   deg[size]
+ *   sources[edges]
+ *
+ * To convert a text input use
+ * java CSRGraph [input] [binary output]
+ */
+public class CSRGraph {
+    // first four bytes of a binary graph file
+    static final int MAGIC = 0x42475250;
+    static final int VERSION = 1;
+    // header length in bytes
+    static final int HEADER = 16;
+    // largest section mapped at once, a multiple of 4 below 2 GB
+    static final int WINDOW = 1 << 30;
+
+    // number of URLs
+    int size;
+    // number of links
+    int edges;
+    // start of each URL's in-neighbour list, size + 1 entries
+    int offsets[];
+    // in-neighbours of every URL, back to back
+    int sources[];
+    // out-degree
+    int deg[];
+
+    CSRGraph(int size, int edges) {
+        this.size    = size;
+        this.edges   = edges;
+        this.offsets = new int[size + 1];
+        this.sources = new int[edges];
+        this.deg     = new int[size];
+    }
+
+    /**
+     * Receives the lines of a text input as they are parsed.
+     */
+    interface LinkSink {
+        // start of the line of URL url
+        void addLine(int url) throws IOException;
+        // out-link of the URL of the current line
+        void addLink(int target) throws IOException;
+    }
+
+    /**
+     * Links of one byte range of a text input, in file order. Line i has URL urls[i] and its
+     * degs[i] out-links are the next degs[i] entries of targets.
+     */
+    static class Chunk implements LinkSink {
+        int lines;
+        int urls[]    = new int[1024];
+        int degs[]    = new int[1024];
+        int edges;
+        int targets[] = new int[1024];
+
+        public void addLine(int url) {
+            if (lines == urls.length) {
+                urls = Arrays.copyOf(urls, lines * 2);
+                degs = Arrays.copyOf(degs, lines * 2);
+            }
+            urls[lines] = url;
+            degs[lines] = 0;
+            lines++;
+        }
+
+        public void addLink(int target) {
+            if (edges == targets.length)
+                targets = Arrays.copyOf(targets, edges * 2);
+            targets[edges++] = target;
+            degs[lines - 1]++;
+        }
+    }
+
+    /**
+     * Read the text adjacency list described in SequentialPageRank.loadInput.
+     *
+     * The file is cut into one byte range per thread, each range starting just after a newline.
+     * Every range is parsed on its own thread by a hand-written tokenizer that reads the bytes
+     * through a reusable buffer and creates no per-token objects. The ranges are then merged in
+     * file order, so the result is the same for any number of threads.
+     *
+     * @param inputFile input file name
+     * @param threads number of parser threads
+     * @throws IOException if an error occurs
+     */
+    public static CSRGraph loadText(String inputFile, int threads) throws IOException {
+        try (FileChannel ch = FileChannel.open(new File(inputFile).toPath())) {
+            long length = ch.size();
+            long bounds[] = new long[threads + 1];
+            for (int i = 1; i < threads; i++)
+                bounds[i] = Math.max(bounds[i - 1], lineStart(ch, length * i / threads));
+            bounds[threads] = length;
+
+            List<Chunk> chunks = new ArrayList<Chunk>();
+            if (threads == 1) {
+                chunks.add(parse(ch, 0, length));
+            }
+            else {
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                try {
+                    List<Future<Chunk>> parts = new ArrayList<Future<Chunk>>();
+                    for (int i = 0; i < threads; i++) {
+                        final long lo = bounds[i], hi = bounds[i + 1];
+                        parts.add(pool.submit(() -> parse(ch, lo, hi)));
+                    }
+                    for (Future<Chunk> f : parts)
+                        chunks.add(f.get());
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException)e.getCause();
+                    throw new IOException(e.getCause());
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            return fromChunks(chunks);
+        }
+    }
+
+    /**
+     * Find the first line starting at or after byte pos.
+     */
+    static long lineStart(FileChannel ch, long pos) throws IOException {
+        if (pos == 0)
+            return 0;
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        // the byte before pos decides whether pos itself starts a line
+        for (long at = pos - 1; ; at += buf.limit()) {
+            buf.clear();
+            if (ch.read(buf, at) <= 0)
+                return ch.size();
+            buf.flip();
+            for (int i = 0; i < buf.limit(); i++)
+                if (buf.get(i) == '\n')
+                    return at + i + 1;
+        }
+    }
+
+    /**
+     * Parse the lines in bytes lo .. hi - 1 of the file.
+     */
+    static Chunk parse(FileChannel ch, long lo, long hi) throws IOException {
+        return parse(ch, lo, hi, new Chunk());
+    }
+
+    /**
+     * Parse the lines in bytes lo .. hi - 1 of the file into the sink.
+     */
+    static <T extends LinkSink> T parse(FileChannel ch, long lo, long hi, T c) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+        byte bytes[] = buf.array();
+        // value of the number being read, -1 between numbers
+        long value = -1;
+        // whether the current line already has its URL
+        boolean first = true;
+
+        for (long pos = lo; pos < hi; ) {
+            buf.clear();
+            buf.limit((int)Math.min(buf.capacity(), hi - pos));
+            int n = ch.read(buf, pos);
+            if (n <= 0)
+                break;
+            pos += n;
+            for (int i = 0; i < n; i++) {
+                int b = bytes[i];
+                if (b >= '0' && b <= '9') {
+                    value = (value < 0 ? 0 : value * 10) + (b - '0');
+                    if (value > Integer.MAX_VALUE)
+                        throw new IOException("URL out of range near byte " + (pos - n + i));
+                    continue;
+                }
+                if (b != ' ' && b != '\t' && b != '\n' && b != '\r')
+                    throw new IOException("unexpected character near byte " + (pos - n + i));
+                if (value >= 0) {
+                    if (first)
+                        c.addLine((int)value);
+                    else
+                        c.addLink((int)value);
+                    first = false;
+                    value = -1;
+                }
+                if (b == '\n')
+                    first = true;
+            }
+        }
+        // last line without a newline
+        if (value >= 0) {
+            if (first)
+                c.addLine((int)value);
+            else
+                c.addLink((int)value);
+        }
+        return c;
+    }
+
+    /**
+     * Build the CSR arrays from parsed chunks with a counting sort on the target. The sort is
+     * stable, so every in-neighbour list keeps file order.
+     *
+     * @throws IOException if a URL is not in 0 .. size - 1
+     */
+    static CSRGraph fromChunks(List<Chunk> chunks) throws IOException {
+        int size = 0, edges = 0;
+        for (Chunk c : chunks) {
+            size  += c.lines;
+            edges += c.edges;
+        }
+        for (int c = 0, line = 1; c < chunks.size(); c++) {
+            Chunk k = chunks.get(c);
+            for (int i = 0, e = 0; i < k.lines; i++, line++) {
+                checkURL(k.urls[i], size, line);
+                for (int end = e + k.degs[i]; e < end; e++)
+                    checkURL(k.targets[e], size, line);
+            }
+        }
+        CSRGraph g = new CSRGraph(size, edges);
+
+        for (Chunk c : chunks) {
+            for (int i = 0; i < c.lines; i++)
+                g.deg[c.urls[i]] = c.degs[i];
+            for (int e = 0; e < c.edges; e++)
+                g.offsets[c.targets[e] + 1]++;
+        }
+        for (int v = 0; v < size; v++)
+            g.offsets[v + 1] += g.offsets[v];
+
+        int fill[] = Arrays.copyOf(g.offsets, size);
+        for (Chunk c : chunks) {
+            for (int i = 0, e = 0; i < c.lines; i++)
+                for (int k = 0; k < c.degs[i]; k++, e++)
+                    g.sources[fill[c.targets[e]]++] = c.urls[i];
+        }
+        return g;
+    }
+
+    /**
+     * Check that a URL of the given line of a text input is one of the size URLs of the input.
+     */
+    static void checkURL(int url, int size, long line) throws IOException {
+        if (url < 0 || url >= size)
+            throw new IOException("URL " + url + " in line " + line + " is out of range 0 .. " + (size - 1)
+                                  + ", the URLs must be numbered by line");
+    }
+
+    /**
+     * Transpose the inbound lists into outbound lists.
+     *
+     * @return { outOffsets, targets }, the out-neighbours of u are
+     * targets[outOffsets[u]] .. targets[outOffsets[u + 1] - 1]
+     */
+    int[][] outLists() {
+        int outOffsets[] = new int[size + 1];
+        for (int u = 0; u < size; u++)
+            outOffsets[u + 1] = outOffsets[u] + deg[u];
+        int targets[] = new int[outOffsets[size]];
+
+        int fill[] = Arrays.copyOf(outOffsets, size);
+        for (int v = 0; v < size; v++)
+            for (int e = offsets[v]; e < offsets[v + 1]; e++)
+                targets[fill[sources[e]]++] = v;
+        return new int[][] { outOffsets, targets };
+    }
+
+    /**
+     * Renumber the URLs, URL u becomes perm[u]. Every in-neighbour list keeps its order, so
+     * rank sums over the renumbered graph are bit for bit those over this one.
+     *
+     * @param perm new number of each URL, a permutation of 0 .. size - 1
+     */
+    CSRGraph relabel(int perm[]) {
+        CSRGraph g = new CSRGraph(size, edges);
+        for (int u = 0; u < size; u++) {
+            g.deg[perm[u]] = deg[u];
+            g.offsets[perm[u] + 1] = offsets[u + 1] - offsets[u];
+        }
+        for (int v = 0; v < size; v++)
+            g.offsets[v + 1] += g.offsets[v];
+        for (int u = 0; u < size; u++) {
+            int at = g.offsets[perm[u]];
+            for (int e = offsets[u]; e < offsets[u + 1]; e++)
+                g.sources[at++] = perm[sources[e]];
+        }
+        return g;
+    }
+
+    /**
+     * Apply link insertions and deletions and return the patched graph. The changes of each
+     * target are applied in log order: an inserted link goes to the end of its target's
+     * in-neighbour list, a deletion removes the last occurrence of the link, so a link inserted
+     * and deleted again leaves the list as it was. URLs beyond the current size are added
+     * without out-links of their own.
+     *
+     * @param changes (source, target) pairs, interleaved
+     * @param inserts for each pair, whether it is inserted or deleted
+     * @param count number of pairs
+     * @throws IOException if a deleted link does not exist
+     */
+    CSRGraph patch(int changes[], boolean inserts[], int count) throws IOException {
+        int newSize = size;
+        for (int c = 0; c < 2 * count; c++)
+            newSize = Math.max(newSize, changes[c] + 1);
+
+        // new in-degrees and out-degrees
+        int indeg[] = new int[newSize];
+        for (int v = 0; v < size; v++)
+            indeg[v] = offsets[v + 1] - offsets[v];
+        int outdeg[] = Arrays.copyOf(deg, newSize);
+        int newEdges = edges;
+        for (int c = 0; c < count; c++) {
+            int d = inserts[c] ? 1 : -1;
+            outdeg[changes[2 * c]] += d;
+            indeg[changes[2 * c + 1]] += d;
+            newEdges += d;
+        }
+
+        // changes grouped by target, in log order
+        int byTarget[] = new int[newSize + 1];
+        for (int c = 0; c < count; c++)
+            byTarget[changes[2 * c + 1] + 1]++;
+        for (int v = 0; v < newSize; v++)
+            byTarget[v + 1] += byTarget[v];
+        int order[] = new int[count];
+        int fill[] = Arrays.copyOf(byTarget, newSize);
+        for (int c = 0; c < count; c++)
+            order[fill[changes[2 * c + 1]]++] = c;
+
+        CSRGraph g = new CSRGraph(newSize, newEdges);
+        for (int v = 0; v < newSize; v++) {
+            if (indeg[v] < 0 || outdeg[v] < 0)
+                throw new IOException("more links of URL " + v + " deleted than exist");
+            g.offsets[v + 1] = g.offsets[v] + indeg[v];
+        }
+        System.arraycopy(outdeg, 0, g.deg, 0, newSize);
+
+        for (int v = 0; v < newSize; v++) {
+            int at = g.offsets[v];
+            int lo = v < size ? offsets[v] : 0, hi = v < size ? offsets[v + 1] : 0;
+            if (byTarget[v] == byTarget[v + 1]) {
+                System.arraycopy(sources, lo, g.sources, at, hi - lo);
+                continue;
+            }
+            // room for the old list and every insertion on the way
+            int kept[] = Arrays.copyOf(Arrays.copyOfRange(sources, lo, hi), hi - lo + byTarget[v + 1] - byTarget[v]);
+            int n = hi - lo;
+            for (int k = byTarget[v]; k < byTarget[v + 1]; k++) {
+                int c = order[k];
+                if (inserts[c]) {
+                    kept[n++] = changes[2 * c];
+                    continue;
+                }
+                int i = n - 1;
+                while (i >= 0 && kept[i] != changes[2 * c])
+                    i--;
+                if (i < 0)
+                    throw new IOException("no link " + changes[2 * c] + " " + v + " to delete");
+                System.arraycopy(kept, i + 1, kept, i, n - i - 1);
+                n--;
+            }
+            System.arraycopy(kept, 0, g.sources, at, n);
+        }
+        return g;
+    }
+
+    /**
+     * Split the URLs into contiguous ranges with roughly the same number of in-links each. A URL
+     * weighs its in-degree plus one, so ranges of URLs without in-links are still split.
+     *
+     * @param parts number of ranges
+     * @return range boundaries, range i is bounds[i] .. bounds[i + 1] - 1
+     */
+    public int[] balancedRanges(int parts) {
+        return balancedRanges(parts, size);
+    }
+
+    /**
+     * Same as balancedRanges(parts) over URLs 0 .. n - 1 only.
+     */
+    public int[] balancedRanges(int parts, int n) {
+        int bounds[] = new int[parts + 1];
+        long total = (long)offsets[n] + n;
+        int v = 0;
+        for (int i = 1; i < parts; i++) {
+            long target = total * i / parts;
+            while (v < n && (long)offsets[v] + v < target)
+                v++;
+            bounds[i] = v;
+        }
+        bounds[parts] = n;
+        return bounds;
+    }
+
+    /**
+     * Check whether the file starts with the binary graph magic.
+     *
+     * @param file file name
+     * @throws IOException if an error occurs
+     */
+    public static boolean isBinary(String file) throws IOException {
+        try (FileChannel ch = FileChannel.open(new File(file).toPath())) {
+            ByteBuffer head = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (head.hasRemaining() && ch.read(head) >= 0)
+                ;
+            return !head.hasRemaining() && head.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Write the graph in the binary format described above.
+     *
+     * @param file output file name
+     * @throws IOException if an error occurs
+     */
+    public void writeBinary(String file) throws IOException {
+        try (FileChannel ch = new RandomAccessFile(file, "rw").getChannel()) {
+            ch.truncate(0);
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(edges);
+            for (int a[] : new int[][] { offsets, deg, sources }) {
+                for (int x : a) {
+                    if (!buf.hasRemaining()) {
+                        buf.flip();
+                        while (buf.hasRemaining())
+                            ch.write(buf);
+                        buf.clear();
+                    }
+                    buf.putInt(x);
+                }
+            }
+            buf.flip();
+            while (buf.hasRemaining())
+                ch.write(buf);
+        }
+    }
+
+    /**
+     * Memory-map a binary graph file. The sections are copied out of the mapping into the
+     * arrays with bulk reads. This skips the parsing but is still one pass over the links, and
+     * every run keeps its own copy of the arrays on the heap; only the file's pages are shared
+     * between runs through the page cache. The engines index the arrays directly, which is
+     * faster than reading through buffer views of the mapping.
+     *
+     * @param file binary graph file name
+     * @throws IOException if the file is not a binary graph or an error occurs
+     */
+    public static CSRGraph mapBinary(String file) throws IOException {
+        try (FileChannel ch = FileChannel.open(new File(file).toPath())) {
+            ByteBuffer head = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            if (head.getInt() != MAGIC || head.getInt() != VERSION)
+                throw new IOException(file + " is not a binary graph file");
+            CSRGraph g = new CSRGraph(head.getInt(), head.getInt());
+            if (ch.size() != HEADER + 4L * (2L * g.size + 1 + g.edges))
+                throw new IOException(file + " is truncated");
+
+            long pos = HEADER;
+            pos = readInts(ch, pos, g.offsets, 0, g.offsets.length);
+            pos = readInts(ch, pos, g.deg, 0, g.deg.length);
+            readInts(ch, pos, g.sources, 0, g.sources.length);
+            return g;
+        }
+    }
+
+    /**
+     * Copy count integers starting at byte pos of the file into dst[at ..].
+     *
+     * @return byte position after the last integer read
+     */
+    static long readInts(FileChannel ch, long pos, int dst[], int at, int count) throws IOException {
+        while (count > 0) {
+            int n = Math.min(count, WINDOW / 4);
+            ch.map(FileChannel.MapMode.READ_ONLY, pos, 4L * n)
+                .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dst, at, n);
+            pos   += 4L * n;
+            at    += n;
+            count -= n;
+        }
+        return pos;
+    }
+
+    /**
+     * Convert a text adjacency list into a binary graph file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2)
+            throw new IOException("usage: java CSRGraph [input] [binary output]");
+
+        CSRGraph g = loadText(args[0], Runtime.getRuntime().availableProcessors());
+        g.writeBinary(args[1]);
+        System.out.println("URLs: " + g.size + " |  Links: " + g.edges);
+    }
+}
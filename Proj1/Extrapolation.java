@@ -0,0 +1,144 @@
+/**
+ * Periodic extrapolation of the power iteration, after Kamvar, Haveliwala, Manning and Golub,
+ * "Extrapolation Methods for Accelerating PageRank Computations".
+ *
+ * The error of the power iteration is dominated by the eigenvectors of the next largest
+ * eigenvalues, whose share shrinks only by about df per iteration. At the end of every period
+ * the last few iterates are combined to cancel those components:
+ *
+ * aitken     assumes one dominant error component, estimates its ratio from the last three
+ *            iterates and adds the rest of its geometric series at once
+ * quadratic  assumes the error lies in the span of two eigenvectors and removes it with a least
+ *            squares fit over the last four iterates
+ *
+ * The extrapolated vector is scaled back to the sum of the iterate it replaces, since the
+ * iteration itself keeps that sum. The iterates before the end of a period are copied, not the
+ * whole history, so the cost is a few vector passes per period.
+ */
+public class Extrapolation {
+    // "aitken" or "quadratic"
+    private String method;
+    // iterations between extrapolations
+    private int period;
+    // the iterates just before the end of the period, oldest first
+    private double hist[][];
+    // number of extrapolations done
+    int count;
+
+    /**
+     * @param method "aitken" or "quadratic"
+     * @param period iterations between extrapolations, more than the iterates it needs
+     * @param size length of the rank vector
+     */
+    Extrapolation(String method, int period, int size) {
+        this.method = method;
+        this.period = period;
+        this.hist   = new double[iterates(method) - 1][size];
+    }
+
+    /**
+     * Number of iterates one extrapolation combines.
+     */
+    static int iterates(String method) {
+        return method.equals("quadratic") ? 4 : 3;
+    }
+
+    /**
+     * Record the rank vector after iteration iter, counting from 1, and extrapolate it in place
+     * at the end of a period.
+     *
+     * @return whether x was changed
+     */
+    boolean apply(int iter, double x[]) {
+        int phase = iter % period, first = period - hist.length;
+        if (phase >= first) {
+            System.arraycopy(x, 0, hist[phase - first], 0, x.length);
+            return false;
+        }
+        if (phase != 0)
+            return false;
+
+        double sum = 0.0;
+        for (double v : x)
+            sum += v;
+        boolean done = method.equals("quadratic") ? quadratic(x) : aitken(x);
+        if (!done)
+            return false;
+
+        double now = 0.0;
+        for (double v : x)
+            now += v;
+        for (int i = 0; i < x.length; i++)
+            x[i] *= sum / now;
+        count++;
+        return true;
+    }
+
+    /**
+     * Aitken delta-squared on the last three iterates, with one ratio q for the whole vector:
+     * the least squares fit of the last step x - x1 to q times the one before. The remaining
+     * geometric series of steps, q / (1 - q) times the last one, is added at once. Skipped
+     * unless |q| < 1; a negative q stands for an error that alternates in sign.
+     */
+    private boolean aitken(double x[]) {
+        double x0[] = hist[0], x1[] = hist[1];
+        double gp = 0.0, pp = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            double g = x[i] - x1[i], prev = x1[i] - x0[i];
+            gp += g * prev;
+            pp += prev * prev;
+        }
+        double q = aitkenRatio(gp, pp);
+        if (q == 0.0)
+            return false;
+        for (int i = 0; i < x.length; i++)
+            x[i] += (x[i] - x1[i]) * q / (1.0 - q);
+        return true;
+    }
+
+    /**
+     * Ratio of the last step to the one before from their products, or 0 if it is not in (-1, 1).
+     */
+    static double aitkenRatio(double gp, double pp) {
+        double q = pp > 0.0 ? gp / pp : 0.0;
+        return Math.abs(q) < 1.0 ? q : 0.0;
+    }
+
+    /**
+     * Quadratic extrapolation of the last four iterates. Skipped when the differences are
+     * too close to parallel for the least squares fit.
+     */
+    private boolean quadratic(double x[]) {
+        double x0[] = hist[0], x1[] = hist[1], x2[] = hist[2];
+        // Gram matrix of y1 = x1 - x0, y2 = x2 - x0 and their products with y3 = x - x0
+        double a = 0.0, b = 0.0, c = 0.0, d = 0.0, e = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            double y1 = x1[i] - x0[i], y2 = x2[i] - x0[i], y3 = x[i] - x0[i];
+            a += y1 * y1;
+            b += y1 * y2;
+            c += y2 * y2;
+            d += y1 * y3;
+            e += y2 * y3;
+        }
+        double gamma[] = quadraticCoefficients(a, b, c, d, e);
+        if (gamma == null)
+            return false;
+        for (int i = 0; i < x.length; i++)
+            x[i] = gamma[0] * x1[i] + gamma[1] * x2[i] + gamma[2] * x[i];
+        return true;
+    }
+
+    /**
+     * Weights of the last three iterates from the normal equations of the least squares fit,
+     * or null if they are singular.
+     */
+    static double[] quadraticCoefficients(double a, double b, double c, double d, double e) {
+        double det = a * c - b * b;
+        if (!(det > 1e-12 * a * c))
+            return null;
+        double g1 = -(c * d - b * e) / det;
+        double g2 = -(a * e - b * d) / det;
+        double g3 = 1.0;
+        return new double[] { g1 + g2 + g3, g2 + g3, g3 };
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Split of the URLs into an iterated core and peeled URLs whose ranks follow from the core.
+ *
+ * A URL without out-links is never an in-neighbour, so no other rank depends on it; its own
+ * equation x[v] = t + df * (in-link sum + x[v]) is solved directly once the in-link sum is
+ * known. A URL whose out-links all go to peeled URLs is no in-neighbour of the core either, and
+ * with chains those are peeled too, repeatedly, so chains and trees that only feed dangling
+ * URLs leave the iteration as well. The core equations only involve core URLs and are iterated
+ * as before; afterwards one pass in reverse peeling order gives every peeled URL its rank from
+ * in-neighbours that are already final.
+ *
+ * The renumbering perm puts the core first, in its original order, followed by the peeled URLs
+ * in reverse peeling order, so that the fill-in pass is a plain sweep over the tail.
+ */
+public class Peeling {
+    // new number of each URL
+    int perm[];
+    // number of core URLs, they are numbered 0 .. core - 1
+    int core;
+    // number of peeled URLs without out-links
+    int dangling;
+
+    /**
+     * @param g graph to split
+     * @param chains also peel URLs whose out-links all go to peeled URLs
+     */
+    Peeling(CSRGraph g, boolean chains) {
+        int size = g.size;
+        // out-links not yet known to go to a peeled URL
+        int left[] = new int[size];
+        // peeled URLs in peeling order, also the worklist
+        int peeled[] = new int[size];
+        int count = 0;
+        for (int v = 0; v < size; v++) {
+            left[v] = g.deg[v];
+            if (left[v] == 0)
+                peeled[count++] = v;
+        }
+        dangling = count;
+
+        for (int head = 0; chains && head < count; head++) {
+            int v = peeled[head];
+            for (int e = g.offsets[v]; e < g.offsets[v + 1]; e++)
+                if (--left[g.sources[e]] == 0)
+                    peeled[count++] = g.sources[e];
+        }
+
+        core = size - count;
+        perm = new int[size];
+        boolean isPeeled[] = new boolean[size];
+        for (int i = 0; i < count; i++) {
+            isPeeled[peeled[i]] = true;
+            perm[peeled[i]] = size - 1 - i;
+        }
+        for (int v = 0, at = 0; v < size; v++)
+            if (!isPeeled[v])
+                perm[v] = at++;
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.*;
+
+/**
+ * Residual-push PageRank on a CSRGraph.
+ *
+ * The ranks solve x = t + df * A x, where t = (1 - df) / size and (A x)[v] sums x[u] / deg[u]
+ * over the in-neighbours u of v, plus x[v] itself when v has no out-links (the rule used by
+ * SequentialPageRank.calculatePageRank). Besides the estimate x every URL keeps a residual r,
+ * the part of the rank that has not been propagated yet, so that the exact ranks are always
+ * x + (I - df * A)^-1 r.
+ *
+ * Pushing URL v moves r[v] into x[v] and hands df * r[v] / deg[v] to each out-neighbour's
+ * residual. Only URLs whose |r| exceeds the threshold sit in the FIFO worklist, so the work per
+ * push round shrinks as the ranks settle. A is column-stochastic, hence once every |r| is at
+ * most the threshold the L1 error of x is at most size * threshold / (1 - df).
+ *
+ * For an incremental update the previous ranks are the starting estimate. Only URLs whose
+ * in-links or in-neighbours' out-degrees changed get a residual; every other residual is taken
+ * as zero, which is exact up to the error the previous run was computed with. The work then
+ * grows with the size of the change rather than with the graph.
+ */
+public class PushPageRank {
+    // graph with inbound lists and out-degrees
+    private CSRGraph graph;
+    // outbound lists: targets[outOffsets[u]] .. targets[outOffsets[u + 1] - 1]
+    private int outOffsets[];
+    private int targets[];
+    // damping factor
+    private double df;
+    // residuals up to this size are left unpropagated
+    private double threshold;
+    // rank estimate
+    double ranks[];
+    // unpropagated residual
+    double residual[];
+
+    // worklist of URLs whose residual exceeds the threshold, as a ring buffer
+    private int queue[];
+    private boolean queued[];
+    private int head, count;
+
+    // work counters of the last run
+    long pushes, edgeVisits;
+
+    PushPageRank(CSRGraph graph, double df, double threshold) {
+        this.graph     = graph;
+        this.df        = df;
+        this.threshold = threshold;
+        this.queue     = new int[graph.size];
+        this.queued    = new boolean[graph.size];
+        int out[][] = graph.outLists();
+        outOffsets = out[0];
+        targets    = out[1];
+    }
+
+    /**
+     * Start from the given estimate and set every residual to t + df * A x - x. A uniform start
+     * of 1 / size matches the power iteration.
+     */
+    void start(double initial[]) {
+        int size = graph.size;
+        ranks    = initial;
+        residual = new double[size];
+        head     = count = 0;
+        for (int v = 0; v < size; v++) {
+            residual[v] = inflow(v) - ranks[v];
+            schedule(v);
+        }
+    }
+
+    /**
+     * Warm start from an earlier result after the links of the touched URLs changed. Residuals
+     * are computed for the touched URLs and their out-neighbours only.
+     *
+     * @param initial ranks of the earlier run, 0 for new URLs
+     * @param touched sources and targets of every changed link
+     * @return number of URLs whose residual was computed
+     */
+    int start(double initial[], int touched[]) {
+        ranks    = initial;
+        residual = new double[graph.size];
+        head     = count = 0;
+        // residuals are computed once per URL, the queued flags mark the URLs already done
+        boolean done[] = queued;
+        int list[] = new int[graph.size];
+        int affected = 0;
+        for (int t : touched) {
+            for (int e = outOffsets[t] - 1; e < outOffsets[t + 1]; e++) {
+                // e == outOffsets[t] - 1 stands for t itself
+                int v = e < outOffsets[t] ? t : targets[e];
+                if (done[v])
+                    continue;
+                done[v] = true;
+                list[affected++] = v;
+                residual[v] = inflow(v) - ranks[v];
+            }
+        }
+        for (int i = 0; i < affected; i++) {
+            done[list[i]] = false;
+            schedule(list[i]);
+        }
+        return affected;
+    }
+
+    /**
+     * Right-hand side t + df * (A x)[v] of URL v for the current estimate.
+     */
+    double inflow(int v) {
+        double pr = 0.0;
+        for (int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++)
+            pr += ranks[graph.sources[e]] / (double)graph.deg[graph.sources[e]];
+        if (graph.deg[v] == 0)
+            pr += ranks[v];
+        return (1.0 - df)/(double)graph.size + df * pr;
+    }
+
+    /**
+     * Push residuals until none exceeds the threshold or maxPushes pushes were done.
+     *
+     * @return L1 norm of the residuals left
+     */
+    double run(long maxPushes) {
+        int size = graph.size;
+        pushes = edgeVisits = 0;
+
+        while (count > 0 && pushes < maxPushes) {
+            int v = queue[head];
+            head = head + 1 == size ? 0 : head + 1;
+            count--;
+            queued[v] = false;
+
+            double r = residual[v];
+            residual[v] = 0.0;
+            pushes++;
+
+            int d = graph.deg[v];
+            if (d == 0) {
+                // the rank flows back to v itself, settle the whole geometric series at once
+                ranks[v] += r / (1.0 - df);
+                continue;
+            }
+            ranks[v] += r;
+            double share = df * r / (double)d;
+            for (int e = outOffsets[v]; e < outOffsets[v + 1]; e++) {
+                int w = targets[e];
+                residual[w] += share;
+                schedule(w);
+            }
+            edgeVisits += d;
+        }
+
+        double left = 0.0;
+        for (int v = 0; v < size; v++)
+            left += Math.abs(residual[v]);
+        return left;
+    }
+
+    /**
+     * Append URL v to the worklist if its residual is above the threshold.
+     */
+    void schedule(int v) {
+        if (queued[v] || Math.abs(residual[v]) <= threshold)
+            return;
+        int tail = head + count;
+        queue[tail >= queue.length ? tail - queue.length : tail] = v;
+        queued[v] = true;
+        count++;
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Ranking and writing of the final rank values without boxing them.
+ *
+ * The order is by decreasing rank, ties by increasing URL, as in the output of every engine.
+ * A full ranking is an LSD radix sort of the URL numbers on the 64-bit pattern of their rank,
+ * linear in the number of URLs; a top-k ranking keeps a heap of k URL numbers instead. Lines
+ * are formatted in large blocks, in parallel when there are threads to spare.
+ *
+ * The binary output holds one record per ranked URL, in rank order: the URL as a little-endian
+ * int followed by its rank as a little-endian double.
+ */
+public class RankedOutput {
+    // size of the binary output buffer
+    static final int BUFFER = 1 << 20;
+    // lines formatted at once
+    static final int LINES = 1 << 15;
+
+    /**
+     * All URLs by decreasing rank, ties by increasing URL.
+     *
+     * @param r rank of each URL
+     * @return URL numbers in rank order
+     */
+    static int[] order(double r[]) {
+        int n = r.length;
+        long key[] = new long[n], keyTmp[] = new long[n];
+        int url[] = new int[n], urlTmp[] = new int[n];
+        for (int v = 0; v < n; v++) {
+            key[v] = descending(r[v]);
+            url[v] = v;
+        }
+
+        // stable passes over 16-bit digits from the lowest; the URLs start in increasing order
+        // so ties keep it. A digit shared by every key is skipped.
+        int count[] = new int[1 << 16];
+        for (int shift = 0; shift < 64; shift += 16) {
+            Arrays.fill(count, 0);
+            for (int i = 0; i < n; i++)
+                count[(int)(key[i] >>> shift) & 0xffff]++;
+            if (n == 0 || count[(int)(key[0] >>> shift) & 0xffff] == n)
+                continue;
+            for (int d = 0, at = 0; d < count.length; d++) {
+                int c = count[d];
+                count[d] = at;
+                at += c;
+            }
+            for (int i = 0; i < n; i++) {
+                int to = count[(int)(key[i] >>> shift) & 0xffff]++;
+                keyTmp[to] = key[i];
+                urlTmp[to] = url[i];
+            }
+            long k[] = key; key = keyTmp; keyTmp = k;
+            int u[] = url; url = urlTmp; urlTmp = u;
+        }
+        return url;
+    }
+
+    /**
+     * The k highest ranked URLs, in the order of order(r).
+     */
+    static int[] top(double r[], int k) {
+        k = Math.min(k, r.length);
+        // heap of the best k so far with the lowest ranked of them at the root
+        long heap[] = new long[k];
+        int url[] = new int[k];
+        int n = 0;
+        for (int v = 0; v < r.length; v++) {
+            long key = descending(r[v]);
+            int i;
+            if (n < k) {
+                // sift up from a new leaf
+                for (i = n++; i > 0 && below(key, v, heap[(i - 1) / 2], url[(i - 1) / 2]); i = (i - 1) / 2) {
+                    heap[i] = heap[(i - 1) / 2];
+                    url[i]  = url[(i - 1) / 2];
+                }
+            }
+            else if (k > 0 && below(heap[0], url[0], key, v)) {
+                // v replaces the root, sift down
+                for (i = 0; 2 * i + 1 < k; ) {
+                    int c = 2 * i + 1;
+                    if (c + 1 < k && below(heap[c + 1], url[c + 1], heap[c], url[c]))
+                        c++;
+                    if (!below(heap[c], url[c], key, v))
+                        break;
+                    heap[i] = heap[c];
+                    url[i]  = url[c];
+                    i = c;
+                }
+            }
+            else
+                continue;
+            heap[i] = key;
+            url[i]  = v;
+        }
+
+        // rank the survivors; order is stable, so ties keep the increasing URLs
+        Arrays.sort(url);
+        double kept[] = new double[k];
+        for (int i = 0; i < k; i++)
+            kept[i] = r[url[i]];
+        int byRank[] = order(kept);
+        int result[] = new int[k];
+        for (int i = 0; i < k; i++)
+            result[i] = url[byRank[i]];
+        return result;
+    }
+
+    /**
+     * Whether URL u with key a ranks below URL v with key b.
+     */
+    private static boolean below(long a, int u, long b, int v) {
+        int c = Long.compareUnsigned(a, b);
+        return c > 0 || c == 0 && u > v;
+    }
+
+    /**
+     * Map a rank to a key whose unsigned order is the decreasing order of the ranks.
+     */
+    private static long descending(double x) {
+        long bits = Double.doubleToLongBits(x);
+        // make the unsigned order of the keys the increasing order of the values, then flip it
+        bits ^= (bits >> 63) | Long.MIN_VALUE;
+        return ~bits;
+    }
+
+    /**
+     * Write the ranked URLs as text lines "Page: url |  Rank: rank". Formatting the ranks is
+     * most of the work, so with more than one thread blocks of lines are formatted in parallel
+     * and written in order.
+     *
+     * @param urls URL number of each index of r, in increasing order, or null if r is indexed by URL
+     * @param console number of leading lines also printed to stdout
+     * @param threads number of formatting threads
+     */
+    static void writeText(String file, int order[], double r[], int urls[], int console, int threads) throws IOException {
+        for (int i = 0; i < Math.min(console, order.length); i++)
+            System.out.println("Page: " + url(urls, order[i]) + " |  Rank: " + r[order[i]]);
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "US-ASCII")) {
+            if (threads <= 1) {
+                for (int lo = 0; lo < order.length; lo += LINES)
+                    writer.write(format(order, r, urls, lo, Math.min(lo + LINES, order.length)));
+                return;
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                // keep a few blocks per thread in flight and write them as they come in order
+                ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+                for (int lo = 0; lo < order.length || !pending.isEmpty(); ) {
+                    if (lo < order.length && pending.size() < 2 * threads) {
+                        final int from = lo, to = Math.min(lo + LINES, order.length);
+                        pending.add(pool.submit(() ->format(order, r, urls, from, to)));
+                        lo = to;
+                    }
+                    else
+                        writer.write(pending.poll().get());
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Format lines lo .. hi - 1 of the ranking.
+     */
+    private static String format(int order[], double r[], int urls[], int lo, int hi) {
+        StringBuilder buf = new StringBuilder(48 * (hi - lo));
+        for (int i = lo; i < hi; i++)
+            buf.append("Page: ").append(url(urls, order[i])).append(" |  Rank: ").append(r[order[i]]).append('\n');
+        return buf.toString();
+    }
+
+    /**
+     * URL number of index v of the ranks.
+     */
+    private static int url(int urls[], int v) {
+        return urls == null ? v : urls[v];
+    }
+
+    /**
+     * Write the ranked URLs as binary (url, rank) records.
+     */
+    static void writeBinary(String file, int order[], double r[], int urls[]) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+            for (int v : order) {
+                if (buf.remaining() < 12)
+                    ShardedGraph.flush(ch, buf);
+                buf.putInt(url(urls, v)).putDouble(r[v]);
+            }
+            ShardedGraph.flush(ch, buf);
+        }
+    }
+}
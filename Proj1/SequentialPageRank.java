@@ -1,6 +1,7 @@
 import java.io.*;
 import java.util.*;
 import java.lang.*;
+import java.util.concurrent.*;
 
 public class SequentialPageRank {
     // adjacency matrix read from file
@@ -15,25 +16,175 @@ public class SequentialPageRank {
     private int iterations = 10;
     // damping factor
     private double df = 0.85;
+    // damping factors iterated together, when more than one is given, and as they were written
+    private double dfs[];
+    private String dfNames[];
     // number of URLs
     private int size = 0;
     // calculating rank values
     private HashMap<Integer, Double> rankValues = new HashMap<Integer, Double>();
+    // graph engine, "map", "csr", "gs", "push" or "ooc"
+    private String mode = "map";
+    // inbound adjacency list in compressed-sparse-row form, used by csr, gs and push
+    private CSRGraph graph;
+    // inbound adjacency list split into shard files on disk, used by the ooc mode
+    private ShardedGraph sharded;
+    // number of shards of the ooc mode, 0 picks it from the number of links
+    private int shards = 0;
+    // directory for the shard files
+    private String shardDir = System.getProperty("java.io.tmpdir");
+    // calculating rank values of all modes but map, indexed by URL
+    private double ranks[];
+    // with the map mode, the URL of each entry of ranks in increasing order, as its URLs need
+    // not be numbered 0 .. size - 1; null when ranks is indexed by URL
+    private int rankUrls[];
+    // number of worker threads: of the csr and gs iterations, of parsing a text input in the
+    // csr, gs and push modes and of formatting the output in all modes but map
+    private int threads = 1;
+    // stop once the change of the rank values falls below this, 0 runs all iterations
+    private double tolerance = 0.0;
+    // norm of the change between iterations, "l1" or "linf"
+    private String norm = "l1";
+    // output file of an earlier run and the link changes since, for an incremental push run
+    private String previousFile = null;
+    private String changesFile = null;
+    // renumbering of the URLs before the csr, gs and push iterations, "none", "degree", "bfs" or "rcm"
+    private String reorder = "none";
+    // new number of each URL under the renumbering, null if the URLs keep their numbers
+    private int perm[];
+    // seed sets for personalized PageRank, one per line, iterated together by the csr mode
+    private String seedsFile = null;
+    // rank columns of the seed sets
+    private BlockPageRank block;
+    // number of highest ranked URLs to output, 0 outputs all
+    private int top = 0;
+    // file for the ranked URLs as binary (url, rank) records, null for none
+    private String binaryOutput = null;
+    // extrapolation of the csr iteration, "none", "aitken" or "quadratic", and its period
+    private String extrapolate = "none";
+    private int extrapolatePeriod = 10;
+    // URLs left out of the csr iteration, "none", "dangling" or "chains"
+    private String peel = "none";
+    // split into iterated core and peeled URLs, null without --peel
+    private Peeling peeling;
 
     /**
      * Parse the command line arguments and update the instance variables. Command line arguments are of the form
-     * <input_file_name> <output_file_name> <num_iters> <damp_factor>
+     * <input_file_name> <output_file_name> <num_iters> <damp_factor[,damp_factor...]> [--mode map|csr|gs|push|ooc]
+     * [--threads n] [--tol tolerance] [--norm l1|linf] [--previous output_file --changes change_file]
+     * [--shards n] [--shard-dir directory] [--reorder none|degree|bfs|rcm] [--seeds seed_file]
+     * [--top k] [--binary-output file] [--extrapolate none|aitken|quadratic] [--extrapolate-period n]
+     * [--peel none|dangling|chains]
      *
      * @param args arguments
      */
     public void parseArgs(String[] args) throws IOException {
-        if (args.length != 4)
+        if (args.length < 4 || args.length % 2 != 0)
             throw new IOException("wrong number of arguments");
 
         inputFile  = args[0];
         outputFile = args[1];
         iterations = Integer.parseInt(args[2]);
-        df         = Double.parseDouble(args[3]);
+        df         = Double.parseDouble(args[3].split(",")[0]);
+        if (args[3].contains(",")) {
+            dfNames = args[3].split(",");
+            dfs = new double[dfNames.length];
+            for (int i = 0; i < dfNames.length; i++)
+                dfs[i] = Double.parseDouble(dfNames[i]);
+        }
+
+        for (int i = 4; i < args.length; i += 2) {
+            switch (args[i]) {
+            case "--mode":
+                mode = args[i + 1];
+                break;
+            case "--threads":
+                threads = Integer.parseInt(args[i + 1]);
+                break;
+            case "--tol":
+                tolerance = Double.parseDouble(args[i + 1]);
+                break;
+            case "--norm":
+                norm = args[i + 1];
+                break;
+            case "--previous":
+                previousFile = args[i + 1];
+                break;
+            case "--changes":
+                changesFile = args[i + 1];
+                break;
+            case "--shards":
+                shards = Integer.parseInt(args[i + 1]);
+                break;
+            case "--shard-dir":
+                shardDir = args[i + 1];
+                break;
+            case "--reorder":
+                reorder = args[i + 1];
+                break;
+            case "--seeds":
+                seedsFile = args[i + 1];
+                break;
+            case "--top":
+                top = Integer.parseInt(args[i + 1]);
+                break;
+            case "--binary-output":
+                binaryOutput = args[i + 1];
+                break;
+            case "--extrapolate":
+                extrapolate = args[i + 1];
+                break;
+            case "--extrapolate-period":
+                extrapolatePeriod = Integer.parseInt(args[i + 1]);
+                break;
+            case "--peel":
+                peel = args[i + 1];
+                break;
+            default:
+                throw new IOException("unknown option " + args[i]);
+            }
+        }
+        if (!Arrays.asList("map", "csr", "gs", "push", "ooc").contains(mode))
+            throw new IOException("unknown mode " + mode);
+        if (threads < 1)
+            throw new IOException("number of threads must be positive");
+        if (threads > 1 && mode.equals("map"))
+            throw new IOException("--threads applies to --mode csr, gs (iteration), push (parsing) and ooc (output), not map");
+        if (shards < 0)
+            throw new IOException("number of shards must not be negative");
+        if (top < 0)
+            throw new IOException("--top must not be negative");
+        if (mode.equals("push") && tolerance <= 0.0)
+            throw new IOException("--mode push requires --tol");
+        if ((previousFile == null) != (changesFile == null))
+            throw new IOException("--previous and --changes go together");
+        if (previousFile != null && !mode.equals("push"))
+            throw new IOException("--previous requires --mode push");
+        if (!norm.equals("l1") && !norm.equals("linf"))
+            throw new IOException("unknown norm " + norm);
+        if (!Arrays.asList("none", "degree", "bfs", "rcm").contains(reorder))
+            throw new IOException("unknown order " + reorder);
+        if (!reorder.equals("none") && !Arrays.asList("csr", "gs", "push").contains(mode))
+            throw new IOException("--reorder requires --mode csr, gs or push");
+        if (!reorder.equals("none") && previousFile != null)
+            throw new IOException("--reorder cannot be used with --previous");
+        if (seedsFile != null && !mode.equals("csr"))
+            throw new IOException("--seeds requires --mode csr");
+        if (dfs != null && (!mode.equals("csr") || seedsFile != null))
+            throw new IOException("a list of damping factors requires --mode csr without --seeds");
+        if (!Arrays.asList("none", "aitken", "quadratic").contains(extrapolate))
+            throw new IOException("unknown extrapolation " + extrapolate);
+        if (!extrapolate.equals("none") && (!mode.equals("csr") || seedsFile != null || dfs != null))
+            throw new IOException("--extrapolate requires --mode csr with one damping factor and without --seeds");
+        if (!extrapolate.equals("none") && extrapolatePeriod < Extrapolation.iterates(extrapolate))
+            throw new IOException("--extrapolate-period must be at least " + Extrapolation.iterates(extrapolate));
+        if (!Arrays.asList("none", "dangling", "chains").contains(peel))
+            throw new IOException("unknown peeling " + peel);
+        if (!peel.equals("none") && (!mode.equals("csr") || seedsFile != null || dfs != null))
+            throw new IOException("--peel requires --mode csr with one damping factor and without --seeds");
+        // the core iteration does not keep the rank sum that Extrapolation scales back to
+        if (!peel.equals("none") && !extrapolate.equals("none"))
+            throw new IOException("--peel cannot be combined with --extrapolate");
     }
 
     /**
@@ -56,9 +207,39 @@ public class SequentialPageRank {
      * For example the page represented by the 0 URL doesn't refer any other URL. Page
      * represented by 1 refer the URL 2.
      *
+     * The ooc mode splits the input into shard files, see ShardedGraph. The csr, gs and push
+     * modes parse the text with CSRGraph.loadText on --threads threads. The input may
+     * also be a binary graph file written by CSRGraph, which is memory-mapped instead of parsed.
+     * With --reorder the loaded CSR graph is renumbered, see VertexOrder, and with --peel the
+     * URLs that need not be iterated are moved behind the others, see Peeling.
+     *
      * @throws java.io.IOException if an error occurs
      */
     public void loadInput() throws IOException {
+        if (mode.equals("ooc")) {
+            sharded = ShardedGraph.build(inputFile, new File(shardDir), shards);
+            size    = sharded.size;
+            return;
+        }
+        if (CSRGraph.isBinary(inputFile)) {
+            graph = CSRGraph.mapBinary(inputFile);
+            size  = graph.size;
+            if (mode.equals("map"))
+                loadMaps(graph);
+            else {
+                reorderGraph();
+                peelGraph();
+            }
+            return;
+        }
+        if (!mode.equals("map")) {
+            graph = CSRGraph.loadText(inputFile, threads);
+            size  = graph.size;
+            reorderGraph();
+            peelGraph();
+            return;
+        }
+
         BufferedReader reader = new BufferedReader(new FileReader(inputFile));
         String line;
         while((line = reader.readLine()) != null) {
@@ -81,15 +262,114 @@ public class SequentialPageRank {
         reader.close();
     }
 
+    /**
+     * Renumber the URLs of the CSR graph so that linked URLs get close numbers and the rank reads
+     * of an iteration stay within fewer cache lines. The mean distance between the numbers of
+     * linked URLs before and after goes to stderr.
+     */
+    private void reorderGraph() {
+        if (reorder.equals("none"))
+            return;
+        long start = System.currentTimeMillis();
+        double before = VertexOrder.meanGap(graph);
+        perm  = VertexOrder.compute(graph, reorder);
+        graph = graph.relabel(perm);
+        System.err.println("Reorder: " + reorder + " |  Mean link gap: " + String.format("%.0f", before)
+                           + " -> " + String.format("%.0f", VertexOrder.meanGap(graph))
+                           + " |  Time: " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Renumber the URLs so that the core of Peeling comes first and the peeled URLs after it.
+     * The sizes of both parts go to stderr.
+     */
+    private void peelGraph() {
+        if (peel.equals("none"))
+            return;
+        peeling = new Peeling(graph, peel.equals("chains"));
+        graph   = graph.relabel(peeling.perm);
+        if (perm == null)
+            perm = peeling.perm;
+        else
+            for (int u = 0; u < size; u++)
+                perm[u] = peeling.perm[perm[u]];
+        System.err.println("Peeled: " + (size - peeling.core) + " of " + size + " URLs (" + peeling.dangling
+                           + " without out-links) |  Core links: " + graph.offsets[peeling.core] + " of " + graph.edges);
+    }
+
+    /**
+     * Put rank values of a renumbered graph back in the order of the input URLs.
+     */
+    private double[] restoreOrder(double r[]) {
+        if (perm == null)
+            return r;
+        double orig[] = new double[size];
+        for (int u = 0; u < size; u++)
+            orig[u] = r[perm[u]];
+        return orig;
+    }
+
+    /**
+     * Populate the adjacency matrix of the map mode from a CSR graph.
+     */
+    private void loadMaps(CSRGraph g) {
+        for (int url = 0; url < g.size; url++) {
+            ArrayList<Integer> lst = new ArrayList<Integer>(g.offsets[url + 1] - g.offsets[url]);
+            for (int e = g.offsets[url]; e < g.offsets[url + 1]; e++)
+                lst.add(g.sources[e]);
+            adjMatrix.put(url, lst);
+            deg.put(url, g.deg[url]);
+        }
+    }
+
     /**
      * Do fixed number of iterations and calculate the page rank values. You may keep the
      * intermediate page rank values in a hash table.
+     *
+     * With a tolerance the iterations stop early once the L1 or L-infinity change of the rank
+     * values falls below it. The number of iterations done and the last change go to stderr.
+     *
+     * @throws IOException if an error occurs
      */
-    public void calculatePageRank() {
+    public void calculatePageRank() throws IOException {
+        if (mode.equals("csr") && seedsFile != null) {
+            double weights[] = BlockPageRank.readSeeds(seedsFile, size, perm);
+            double same[] = new double[weights.length / size];
+            Arrays.fill(same, df);
+            calculatePageRankBlock(same, weights);
+            return;
+        }
+        if (mode.equals("csr") && dfs != null) {
+            calculatePageRankBlock(dfs, null);
+            return;
+        }
+        if (mode.equals("csr")) {
+            calculatePageRankCSR();
+            ranks = restoreOrder(ranks);
+            return;
+        }
+        if (mode.equals("gs")) {
+            calculatePageRankGS();
+            ranks = restoreOrder(ranks);
+            return;
+        }
+        if (mode.equals("push")) {
+            calculatePageRankPush();
+            ranks = restoreOrder(ranks);
+            return;
+        }
+        if (mode.equals("ooc")) {
+            calculatePageRankOOC();
+            return;
+        }
+
         HashMap<Integer, Double> vals = new HashMap<Integer, Double>();
         adjMatrix.forEach((url, lst) -> rankValues.put(url, 1.0/(double)size));
         
-        for(int i = 0; i < iterations; ++i) {
+        int iter = 0;
+        double residual[] = new double[1];
+        while (iter < iterations) {
+            residual[0] = 0.0;
             adjMatrix.forEach((url, lst) -> {
                     double pr = 0.0;
 		    for(int u : lst)
@@ -98,9 +378,513 @@ public class SequentialPageRank {
                     if (deg.get(url) == 0)
                         pr += rankValues.get(url);
                     
-                    vals.put(url, (1.0 - df)/(double)size + df * pr);
+                    double val = (1.0 - df)/(double)size + df * pr;
+                    residual[0] = accumulate(residual[0], Math.abs(val - rankValues.get(url)));
+                    vals.put(url, val);
                 });
             rankValues.putAll(vals);
+            ++iter;
+            if (residual[0] < tolerance)
+                break;
+        }
+        logConvergence(iter, residual[0]);
+    }
+
+    /**
+     * Add one URL's change to the running norm.
+     */
+    private double accumulate(double residual, double change) {
+        return norm.equals("l1") ? residual + change : Math.max(residual, change);
+    }
+
+    private void logConvergence(int iter, double residual) {
+        System.err.println("Iterations: " + iter + " |  Residual (" + norm + "): " + residual);
+    }
+
+    /**
+     * Same iteration as calculatePageRank on the CSR arrays. Every in-neighbour list is summed in
+     * file order, so the ranks are bit for bit those of the map version.
+     *
+     * With more than one thread the URLs are split into ranges of roughly equal in-link counts.
+     * Each worker pulls from the current buffer into its own range of the next buffer, so the
+     * result does not depend on the number of threads.
+     *
+     * With --extrapolate the rank vector is extrapolated every --extrapolate-period iterations
+     * that did not yet reach the tolerance, see Extrapolation.
+     *
+     * With --peel only the core URLs are iterated and the tolerance applies to them; the peeled
+     * URLs get their ranks from one pass at the end, see fillPeeled.
+     */
+    private void calculatePageRankCSR() {
+        // iterated URLs
+        int n = peeling == null ? size : peeling.core;
+        int bounds[] = graph.balancedRanges(threads, n);
+        double next[] = new double[size];
+        // rank value divided by out-degree, shared by every out-link of a URL
+        double contrib[] = new double[size];
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
+        ranks = new double[size];
+        Arrays.fill(ranks, 1.0/(double)size);
+        // the peeled URLs are not iterated, keep their start value in both buffers
+        Arrays.fill(next, n, size, 1.0/(double)size);
+        Extrapolation extrapolation = extrapolate.equals("none") ? null
+            : new Extrapolation(extrapolate, extrapolatePeriod, size);
+
+        long start = System.nanoTime();
+        int iter = 0;
+        double residual = 0.0;
+        while (iter < iterations) {
+            final double cur[] = ranks, nxt[] = next;
+            residual = 0.0;
+            if (pool == null) {
+                scatter(0, n, cur, contrib);
+                residual = gather(0, n, cur, nxt, contrib);
+            }
+            else {
+                ArrayList<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+                for (int t = 0; t < threads; ++t) {
+                    final int lo = bounds[t], hi = bounds[t + 1];
+                    tasks.add(() -> { scatter(lo, hi, cur, contrib); return 0.0; });
+                }
+                runAll(pool, tasks);
+
+                tasks.clear();
+                for (int t = 0; t < threads; ++t) {
+                    final int lo = bounds[t], hi = bounds[t + 1];
+                    tasks.add(() -> gather(lo, hi, cur, nxt, contrib));
+                }
+                // combine the ranges in a fixed order so the residual is deterministic too
+                for (double r : runAll(pool, tasks))
+                    residual = norm.equals("l1") ? residual + r : Math.max(residual, r);
+            }
+
+            // swap rank buffers
+            ranks = nxt;
+            next  = cur;
+            ++iter;
+            if (residual < tolerance)
+                break;
+            if (extrapolation != null)
+                extrapolation.apply(iter, ranks);
+        }
+        if (peeling != null)
+            fillPeeled();
+        logConvergence(iter, residual);
+        if (extrapolation != null)
+            System.err.println("Extrapolations: " + extrapolation.count + " (" + extrapolate + ", every "
+                               + extrapolatePeriod + " iterations)");
+        System.err.println("Threads: " + threads + " |  Iteration time: "
+                           + (System.nanoTime() - start) / 1000000 + " ms");
+
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    /**
+     * Solve the equations of the peeled URLs from the final core ranks. Their in-neighbours are
+     * core URLs or peeled URLs that come earlier in the renumbering, so one sweep suffices; a URL
+     * without out-links also feeds its own rank back to itself, which is solved for.
+     */
+    private void fillPeeled() {
+        int offsets[] = graph.offsets;
+        int sources[] = graph.sources;
+        int deg[]     = graph.deg;
+        double teleport = (1.0 - df)/(double)size;
+        for (int url = peeling.core; url < size; ++url) {
+            double pr = 0.0;
+            for (int e = offsets[url]; e < offsets[url + 1]; ++e)
+                pr += ranks[sources[e]] / (double)deg[sources[e]];
+            ranks[url] = deg[url] == 0 ? (teleport + df * pr) / (1.0 - df) : teleport + df * pr;
+        }
+    }
+
+    /**
+     * Several PageRank problems at once, see BlockPageRank: personalized PageRank of every seed
+     * set of the seed file, or plain PageRank for every damping factor of a list. The iteration
+     * is that of calculatePageRankCSR on a block of rank columns. The tolerance applies to each
+     * column, which is frozen once below it, so every column ends as it would in a run of its
+     * own; the iterations stop once all columns are frozen.
+     *
+     * @param dfs damping factor of each column
+     * @param weights teleport distributions of the columns, null for uniform
+     */
+    private void calculatePageRankBlock(double dfs[], double weights[]) throws IOException {
+        int k = dfs.length;
+        block = new BlockPageRank(graph, dfs, weights);
+        // iterations each column took and its last change
+        int done[] = new int[k];
+        double last[] = new double[k];
+
+        int bounds[] = graph.balancedRanges(threads);
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        boolean l1 = norm.equals("l1");
+
+        long start = System.nanoTime();
+        int iter = 0;
+        double residual = 0.0;
+        while (iter < iterations) {
+            double change[];
+            if (pool == null) {
+                block.scatter(0, size);
+                change = block.gather(0, size, l1);
+            }
+            else {
+                ArrayList<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+                for (int t = 0; t < threads; ++t) {
+                    final int lo = bounds[t], hi = bounds[t + 1];
+                    tasks.add(() -> { block.scatter(lo, hi); return null; });
+                }
+                runAll(pool, tasks);
+
+                tasks.clear();
+                for (int t = 0; t < threads; ++t) {
+                    final int lo = bounds[t], hi = bounds[t + 1];
+                    tasks.add(() -> block.gather(lo, hi, l1));
+                }
+                change = new double[k];
+                for (double r[] : runAll(pool, tasks))
+                    for (int j = 0; j < k; ++j)
+                        change[j] = accumulate(change[j], r[j]);
+            }
+            block.swap();
+            ++iter;
+
+            // the block has converged once its slowest column has
+            residual = 0.0;
+            for (int j = 0; j < k; ++j) {
+                if (block.frozen[j])
+                    continue;
+                done[j] = iter;
+                last[j] = change[j];
+                residual = Math.max(residual, change[j]);
+                if (change[j] < tolerance)
+                    block.frozen[j] = true;
+            }
+            if (residual < tolerance)
+                break;
+        }
+        if (weights == null) {
+            for (int j = 0; j < k; ++j)
+                System.err.println("Damping factor: " + dfs[j] + " |  Iterations: " + done[j]
+                                   + " |  Residual (" + norm + "): " + last[j]);
+        }
+        else
+            logConvergence(iter, residual);
+        System.err.println((weights == null ? "Damping factors: " : "Seed sets: ") + k + " |  Threads: "
+                           + threads + " |  Iteration time: " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    /**
+     * Gauss-Seidel variant of calculatePageRankCSR. Ranks are updated in place and later URLs of
+     * the same sweep already see the new values of earlier ones, which usually reaches a given
+     * tolerance in far fewer sweeps. There is no second rank buffer and no copy per iteration.
+     * A URL without out-links feeds its own rank back to itself, so its update is solved for
+     * that diagonal term instead of being iterated; the fixed point is the same as calculatePageRank.
+     *
+     * The single array holds each URL's out-link share, rank / out-degree, or the rank itself
+     * for URLs without out-links. The ranks are recovered from it after the last sweep.
+     *
+     * With more than one thread every worker sweeps its own range in place while the others
+     * run. A worker may read a neighbour's value from before or after that neighbour's update
+     * in the same sweep; either is a valid Gauss-Seidel/Jacobi mix, so the races are benign but
+     * the result varies slightly between runs.
+     */
+    private void calculatePageRankGS() {
+        int bounds[] = graph.balancedRanges(threads);
+        int deg[]    = graph.deg;
+        double share[] = new double[size];
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
+        for (int u = 0; u < size; ++u)
+            share[u] = deg[u] == 0 ? 1.0/(double)size : (1.0/(double)size) / (double)deg[u];
+
+        long start = System.nanoTime();
+        int iter = 0;
+        double residual = 0.0;
+        while (iter < iterations) {
+            residual = 0.0;
+            if (pool == null) {
+                residual = sweep(0, size, share);
+            }
+            else {
+                ArrayList<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+                for (int t = 0; t < threads; ++t) {
+                    final int lo = bounds[t], hi = bounds[t + 1];
+                    tasks.add(() -> sweep(lo, hi, share));
+                }
+                for (double r : runAll(pool, tasks))
+                    residual = norm.equals("l1") ? residual + r : Math.max(residual, r);
+            }
+            ++iter;
+            if (residual < tolerance)
+                break;
+        }
+        logConvergence(iter, residual);
+        System.err.println("Threads: " + threads + " |  Iteration time: "
+                           + (System.nanoTime() - start) / 1000000 + " ms");
+
+        if (pool != null)
+            pool.shutdown();
+
+        ranks = share;
+        for (int u = 0; u < size; ++u)
+            if (deg[u] != 0)
+                ranks[u] = share[u] * (double)deg[u];
+    }
+
+    /**
+     * Residual-push PageRank, see PushPageRank. Only URLs whose unpropagated residual exceeds
+     * tolerance * (1 - df) / size are pushed, which bounds the L1 distance to the exact ranks by
+     * the tolerance. The work is capped at iterations * size pushes.
+     *
+     * With --previous and --changes the loaded graph is the one the previous output was computed
+     * on. The link changes are patched into it and the previous ranks are the warm start, so only
+     * the residuals around the changed links are propagated. If the changes add URLs, the
+     * teleport term of every URL changes and all residuals are recomputed.
+     */
+    private void calculatePageRankPush() throws IOException {
+        PushPageRank push;
+        long start = System.nanoTime();
+        if (previousFile == null) {
+            push = new PushPageRank(graph, df, tolerance * (1.0 - df) / (double)size);
+            double initial[] = new double[size];
+            Arrays.fill(initial, 1.0/(double)size);
+            push.start(initial);
+        }
+        else {
+            int oldSize = size;
+            ArrayList<Integer> changes = new ArrayList<Integer>();
+            ArrayList<Boolean> inserts = new ArrayList<Boolean>();
+            readChanges(changes, inserts);
+
+            int pairs[] = new int[changes.size()];
+            boolean insert[] = new boolean[inserts.size()];
+            for (int c = 0; c < pairs.length; c++)
+                pairs[c] = changes.get(c);
+            for (int c = 0; c < insert.length; c++)
+                insert[c] = inserts.get(c);
+            graph = graph.patch(pairs, insert, insert.length);
+            size = graph.size;
+
+            push = new PushPageRank(graph, df, tolerance * (1.0 - df) / (double)size);
+            double initial[] = new double[size];
+            int found = readPrevious(initial, oldSize);
+            // the residuals of URLs away from the changes are only right if f ranked every URL
+            if (found < oldSize)
+                System.err.println("Previous ranks: " + found + " of " + oldSize
+                                   + " URLs, the missing start at 0 and all residuals are recomputed");
+            int affected = size;
+            if (size == oldSize && found == oldSize)
+                affected = push.start(initial, pairs);
+            else
+                push.start(initial);
+            System.err.println("Changed links: " + insert.length + " |  URLs with new residuals: " + affected);
+        }
+
+        double left = push.run((long)iterations * size);
+        ranks = push.ranks;
+
+        System.err.println("Pushes: " + push.pushes + " |  Edge visits: " + push.edgeVisits
+                           + " (" + String.format("%.1f", (double)push.edgeVisits / Math.max(1, graph.edges))
+                           + " sweeps) |  Error bound (l1): " + left / (1.0 - df));
+        System.err.println("Threads: 1 |  Iteration time: "
+                           + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Same iteration as calculatePageRankCSR with the in-links streamed from the shard files.
+     * Each shard's in-neighbour lists keep file order, so the ranks are again bit for bit those
+     * of the map version. Only the rank vectors, the out-link shares and the out-degrees are
+     * held in memory.
+     */
+    private void calculatePageRankOOC() throws IOException {
+        int deg[] = sharded.deg;
+        double next[] = new double[size];
+        double contrib[] = new double[size];
+        double teleport = (1.0 - df)/(double)size;
+
+        ranks = new double[size];
+        Arrays.fill(ranks, 1.0/(double)size);
+
+        long start = System.nanoTime();
+        int iter = 0;
+        double residual = 0.0;
+        try {
+            while (iter < iterations) {
+                for (int u = 0; u < size; ++u)
+                    contrib[u] = deg[u] == 0 ? 0.0 : ranks[u] / (double)deg[u];
+
+                residual = 0.0;
+                for (int s = 0; s < sharded.shards(); ++s) {
+                    try (ShardedGraph.Shard shard = sharded.open(s)) {
+                        for (int url = shard.lo; url < shard.hi; ++url) {
+                            double pr = 0.0;
+                            for (int k = shard.counts[url - shard.lo]; k > 0; --k)
+                                pr += contrib[shard.next()];
+
+                            if (deg[url] == 0)
+                                pr += ranks[url];
+
+                            next[url] = teleport + df * pr;
+                            residual  = accumulate(residual, Math.abs(next[url] - ranks[url]));
+                        }
+                    }
+                }
+
+                double tmp[] = ranks;
+                ranks = next;
+                next  = tmp;
+                ++iter;
+                if (residual < tolerance)
+                    break;
+            }
+        } finally {
+            sharded.delete();
+        }
+        logConvergence(iter, residual);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println("Shards: " + sharded.shards() + " |  Read per iteration: "
+                           + sharded.bytesRead / Math.max(1, iter) / (1 << 20) + " MB |  Throughput: "
+                           + String.format("%.1f", sharded.bytesRead / seconds / (1 << 20)) + " MB/s");
+        System.err.println("Threads: 1 |  Iteration time: " + (long)(seconds * 1000) + " ms");
+    }
+
+    /**
+     * Read the link change log. Each line is "+ source target" for a new link or
+     * "- source target" for a removed one; empty lines and lines starting with # are skipped.
+     */
+    private void readChanges(List<Integer> changes, List<Boolean> inserts) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(changesFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String f[] = line.split("\\s+");
+                if (f.length != 3 || !(f[0].equals("+") || f[0].equals("-")))
+                    throw new IOException("bad change line: " + line);
+                inserts.add(f[0].equals("+"));
+                changes.add(Integer.parseInt(f[1]));
+                changes.add(Integer.parseInt(f[2]));
+            }
+        }
+    }
+
+    /**
+     * Read the ranks of an earlier output file, "Page: url |  Rank: value" per line. URLs missing
+     * from it, such as those left out by --top, keep 0.
+     *
+     * @param previous ranks to fill in, indexed by URL
+     * @param oldSize number of URLs of the graph the file was computed on
+     * @return number of distinct URLs below oldSize the file ranks
+     */
+    private int readPrevious(double previous[], int oldSize) throws IOException {
+        boolean seen[] = new boolean[oldSize];
+        int found = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(previousFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int bar = line.indexOf('|'), rank = line.indexOf("Rank:");
+                if (!line.startsWith("Page:") || bar < 0 || rank < bar)
+                    throw new IOException("bad rank line: " + line);
+                int url = Integer.parseInt(line.substring(5, bar).trim());
+                if (url < 0 || url >= oldSize)
+                    continue;
+                previous[url] = Double.parseDouble(line.substring(rank + 5).trim());
+                if (!seen[url]) {
+                    seen[url] = true;
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Update URLs lo .. hi - 1 in place.
+     *
+     * @return change of the range under the chosen norm
+     */
+    private double sweep(int lo, int hi, double share[]) {
+        int offsets[] = graph.offsets;
+        int sources[] = graph.sources;
+        int deg[]     = graph.deg;
+        double teleport = (1.0 - df)/(double)size;
+        double residual = 0.0;
+
+        for (int url = lo; url < hi; ++url) {
+            double pr = 0.0;
+            for (int e = offsets[url]; e < offsets[url + 1]; ++e)
+                pr += share[sources[e]];
+
+            double old = share[url];
+            if (deg[url] == 0) {
+                // a URL without out-links keeps its own rank, solve for it instead of iterating
+                share[url] = (teleport + df * pr) / (1.0 - df);
+                residual   = accumulate(residual, Math.abs(share[url] - old));
+            }
+            else {
+                double val = teleport + df * pr;
+                share[url] = val / (double)deg[url];
+                residual   = accumulate(residual, Math.abs(val - old * (double)deg[url]));
+            }
+        }
+        return residual;
+    }
+
+    /**
+     * Compute the out-link share of URLs lo .. hi - 1.
+     */
+    private void scatter(int lo, int hi, double cur[], double contrib[]) {
+        int deg[] = graph.deg;
+        for (int u = lo; u < hi; ++u)
+            contrib[u] = deg[u] == 0 ? 0.0 : cur[u] / (double)deg[u];
+    }
+
+    /**
+     * Pull the new rank values of URLs lo .. hi - 1 from their in-neighbours.
+     *
+     * @return change of the range under the chosen norm
+     */
+    private double gather(int lo, int hi, double cur[], double next[], double contrib[]) {
+        int offsets[] = graph.offsets;
+        int sources[] = graph.sources;
+        int deg[]     = graph.deg;
+        double teleport = (1.0 - df)/(double)size;
+        double residual = 0.0;
+
+        for (int url = lo; url < hi; ++url) {
+            double pr = 0.0;
+            for (int e = offsets[url]; e < offsets[url + 1]; ++e)
+                pr += contrib[sources[e]];
+
+            if (deg[url] == 0)
+                pr += cur[url];
+
+            next[url] = teleport + df * pr;
+            residual  = accumulate(residual, Math.abs(next[url] - cur[url]));
+        }
+        return residual;
+    }
+
+    /**
+     * Run the tasks on the pool and wait for all of them.
+     *
+     * @return results in task order
+     */
+    private static <T> List<T> runAll(ExecutorService pool, List<Callable<T>> tasks) {
+        try {
+            ArrayList<T> results = new ArrayList<T>();
+            for (Future<T> f : pool.invokeAll(tasks))
+                results.add(f.get());
+            return results;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -108,29 +892,44 @@ public class SequentialPageRank {
      * Print the pagerank values. Before printing you should sort them according to decreasing order.
      * Print all the values to the output file. Print only the first 10 values to console.
      *
+     * The values are ranked and written by RankedOutput on primitive arrays. With --top only the
+     * k highest ranked URLs are kept, and with --binary-output they are also written as binary
+     * (url, rank) records.
+     *
      * @throws IOException if an error occurs
      */
-    Comparator<Map.Entry<Integer, Double>> comp = (p1, p2) -> {
-        if (p1.getValue() < p2.getValue())
-            return 1;
-        else if (p1.getValue() > p2.getValue())
-            return -1;
-        
-        return p1.getKey() - p2.getKey();
-    };
-              
     public void printValues() throws IOException {
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile));
-        ArrayList<Map.Entry<Integer, Double>> lst = new ArrayList<Map.Entry<Integer, Double>>();
-        rankValues.entrySet().forEach(v -> lst.add(v));
-        Collections.sort(lst, comp);
-        for (int i = 0; i < size; ++i) {
-            Map.Entry<Integer, Double> v = lst.get(i);
-            if (i < 10)
-                System.out.println("Page: " + v.getKey() + " |  Rank: " + v.getValue());
-            writer.write("Page: " + v.getKey() + " |  Rank: " + v.getValue() + "\n");
-        }
-        writer.close();
+        if (mode.equals("map")) {
+            // increasing URLs, so that the ties of the ranking stay in URL order
+            rankUrls = new int[rankValues.size()];
+            int i = 0;
+            for (int url : rankValues.keySet())
+                rankUrls[i++] = url;
+            Arrays.sort(rankUrls);
+            ranks = new double[rankUrls.length];
+            for (i = 0; i < rankUrls.length; i++)
+                ranks[i] = rankValues.get(rankUrls[i]);
+        }
+        if (block != null) {
+            // one output file per column, named after the line of the seed file or the damping factor
+            for (int j = 0; j < block.k; ++j) {
+                String name = seedsFile == null ? dfNames[j] : Integer.toString(j);
+                ranks = restoreOrder(block.column(j));
+                printValues(outputFile + "." + name, binaryOutput == null ? null : binaryOutput + "." + name, j == 0);
+            }
+            return;
+        }
+        printValues(outputFile, binaryOutput, true);
+    }
+
+    /**
+     * Print the rank values to the given files, and the first 10 to the console if asked to.
+     */
+    private void printValues(String outputFile, String binaryFile, boolean console) throws IOException {
+        int order[] = top > 0 ? RankedOutput.top(ranks, top) : RankedOutput.order(ranks);
+        RankedOutput.writeText(outputFile, order, ranks, rankUrls, console ? 10 : 0, threads);
+        if (binaryFile != null)
+            RankedOutput.writeBinary(binaryFile, order, ranks, rankUrls);
     }
 
     public static void main(String[] args) throws IOException {
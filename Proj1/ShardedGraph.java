@@ -0,0 +1,373 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Out-of-core form of the inbound adjacency list, for graphs whose links do not fit in the heap.
+ *
+ * The URLs are split into intervals with roughly the same number of in-links, and the in-links
+ * of each interval are kept in a shard file on disk, grouped by target in file order. Only
+ * per-URL arrays stay in memory: the out-degrees here and the rank vectors of the caller. Every
+ * iteration streams the shards one after another through a large buffer, so the disk sees only
+ * sequential reads. A shard file holds little-endian integers:
+ *
+ *   lo, hi, edges
+ *   counts[hi - lo]    in-degree of each URL of the interval
+ *   sources[edges]     in-neighbours of URL lo, then of lo + 1, ...
+ *
+ * Building the shards reads a text input twice, first for the degrees and then to append every
+ * link to a temporary file of its target's shard; each temporary file is then sorted in memory
+ * on its own. A binary input from CSRGraph is already grouped by target and is copied straight
+ * into the shards.
+ */
+public class ShardedGraph {
+    // size of the read and write buffers
+    static final int BUFFER = 4 << 20;
+    // links per shard when the number of shards is not given
+    static final long SHARD_EDGES = 1 << 23;
+
+    // number of URLs
+    int size;
+    // number of links
+    long edges;
+    // out-degree
+    int deg[];
+    // shard i covers URLs bounds[i] .. bounds[i + 1] - 1
+    int bounds[];
+    // shard files
+    File files[];
+    // bytes read by open shards so far
+    long bytesRead;
+    // read buffer and its decoded integers, shared by the shards as one is open at a time
+    private ByteBuffer buf;
+    private int block[];
+
+    /**
+     * Split a text or binary graph file into shards.
+     *
+     * @param inputFile input file name
+     * @param dir directory for the shard files
+     * @param shards number of shards, 0 picks one shard per SHARD_EDGES links
+     * @throws IOException if an error occurs
+     */
+    public static ShardedGraph build(String inputFile, File dir, int shards) throws IOException {
+        ShardedGraph g = new ShardedGraph();
+        File home = Files.createTempDirectory(dir.toPath(), "pagerank-shards").toFile();
+        home.deleteOnExit();
+        if (CSRGraph.isBinary(inputFile))
+            g.buildFromBinary(inputFile, home, shards);
+        else
+            g.buildFromText(inputFile, home, shards);
+        return g;
+    }
+
+    /**
+     * Count the URLs and degrees of a text input without keeping its links.
+     */
+    private static class DegreeSink implements CSRGraph.LinkSink {
+        int lines, url;
+        long edges;
+        int outdeg[] = new int[1024];
+        int indeg[]  = new int[1024];
+        // largest URL seen and the first line it appears in, checked against lines at the end
+        int maxURL = -1, maxLine;
+        // every line takes at least two bytes, so no valid URL reaches this; checked before
+        // the arrays grow
+        long limit;
+
+        DegreeSink(long fileSize) {
+            limit = (fileSize + 1) / 2;
+        }
+
+        public void addLine(int url) throws IOException {
+            this.url = url;
+            lines++;
+            seen(url);
+            if (url >= outdeg.length)
+                outdeg = Arrays.copyOf(outdeg, Math.max(url + 1, outdeg.length * 2));
+        }
+
+        public void addLink(int target) throws IOException {
+            seen(target);
+            if (target >= indeg.length)
+                indeg = Arrays.copyOf(indeg, Math.max(target + 1, indeg.length * 2));
+            indeg[target]++;
+            outdeg[url]++;
+            edges++;
+        }
+
+        void seen(int url) throws IOException {
+            if (url >= limit)
+                throw new IOException("URL " + url + " in line " + lines + " is out of range, the input has at most "
+                                      + limit + " lines");
+            if (url > maxURL) {
+                maxURL  = url;
+                maxLine = lines;
+            }
+        }
+    }
+
+    /**
+     * Append every (source, target) pair of a text input to its shard's temporary file.
+     */
+    private class PairSink implements CSRGraph.LinkSink {
+        FileChannel out[];
+        ByteBuffer buf[];
+        int url;
+
+        PairSink(File tmp[]) throws IOException {
+            out = new FileChannel[tmp.length];
+            buf = new ByteBuffer[tmp.length];
+            for (int i = 0; i < tmp.length; i++) {
+                out[i] = FileChannel.open(tmp[i].toPath(), StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                buf[i] = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        public void addLine(int url) {
+            this.url = url;
+        }
+
+        public void addLink(int target) throws IOException {
+            // last shard starting at or before the target, empty shards share a bound
+            int s = 0, last = bounds.length - 2;
+            while (s < last) {
+                int mid = (s + last + 1) >>> 1;
+                if (bounds[mid] <= target)
+                    s = mid;
+                else
+                    last = mid - 1;
+            }
+            if (buf[s].remaining() < 8)
+                flush(out[s], buf[s]);
+            buf[s].putInt(url).putInt(target);
+        }
+
+        void close() throws IOException {
+            for (int i = 0; i < out.length; i++) {
+                flush(out[i], buf[i]);
+                out[i].close();
+            }
+        }
+    }
+
+    private void buildFromText(String inputFile, File home, int shards) throws IOException {
+        DegreeSink degrees = new DegreeSink(new File(inputFile).length());
+        try (FileChannel ch = FileChannel.open(new File(inputFile).toPath())) {
+            CSRGraph.parse(ch, 0, ch.size(), degrees);
+        }
+        CSRGraph.checkURL(degrees.maxURL, degrees.lines, degrees.maxLine);
+        size  = degrees.lines;
+        edges = degrees.edges;
+        deg   = Arrays.copyOf(degrees.outdeg, size);
+        int indeg[] = Arrays.copyOf(degrees.indeg, size);
+        degrees = null;
+
+        split(indeg, shards);
+        File tmp[] = new File[bounds.length - 1];
+        for (int i = 0; i < tmp.length; i++)
+            tmp[i] = new File(home, "shard-" + i + ".pairs");
+
+        PairSink pairs = new PairSink(tmp);
+        try (FileChannel ch = FileChannel.open(new File(inputFile).toPath())) {
+            CSRGraph.parse(ch, 0, ch.size(), pairs);
+        } finally {
+            pairs.close();
+        }
+
+        // sort one shard at a time by target, keeping file order within a target
+        files = new File[tmp.length];
+        for (int i = 0; i < tmp.length; i++) {
+            int lo = bounds[i], hi = bounds[i + 1];
+            int n = (int)(tmp[i].length() / 8);
+            int pair[] = new int[2 * n];
+            try (FileChannel ch = FileChannel.open(tmp[i].toPath())) {
+                CSRGraph.readInts(ch, 0, pair, 0, 2 * n);
+            }
+            tmp[i].delete();
+
+            int counts[] = new int[hi - lo];
+            for (int e = 0; e < n; e++)
+                counts[pair[2 * e + 1] - lo]++;
+            int fill[] = new int[hi - lo];
+            for (int v = 1; v < hi - lo; v++)
+                fill[v] = fill[v - 1] + counts[v - 1];
+            int sources[] = new int[n];
+            for (int e = 0; e < n; e++)
+                sources[fill[pair[2 * e + 1] - lo]++] = pair[2 * e];
+
+            files[i] = new File(home, "shard-" + i);
+            files[i].deleteOnExit();
+            try (FileChannel ch = FileChannel.open(files[i].toPath(), StandardOpenOption.CREATE,
+                                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(lo).putInt(hi).putInt(n);
+                writeInts(ch, buf, counts, counts.length);
+                writeInts(ch, buf, sources, n);
+                flush(ch, buf);
+            }
+        }
+    }
+
+    private void buildFromBinary(String inputFile, File home, int shards) throws IOException {
+        try (FileChannel in = FileChannel.open(new File(inputFile).toPath())) {
+            IntBuffer head = in.map(FileChannel.MapMode.READ_ONLY, 0, CSRGraph.HEADER)
+                .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            size  = head.get(2);
+            edges = head.get(3);
+            int offsets[] = new int[size + 1];
+            long pos = CSRGraph.readInts(in, CSRGraph.HEADER, offsets, 0, size + 1);
+            deg = new int[size];
+            long sourcesStart = CSRGraph.readInts(in, pos, deg, 0, size);
+
+            int indeg[] = new int[size];
+            for (int v = 0; v < size; v++)
+                indeg[v] = offsets[v + 1] - offsets[v];
+            split(indeg, shards);
+
+            files = new File[bounds.length - 1];
+            for (int i = 0; i < files.length; i++) {
+                int lo = bounds[i], hi = bounds[i + 1];
+                int n = offsets[hi] - offsets[lo];
+                files[i] = new File(home, "shard-" + i);
+                files[i].deleteOnExit();
+                try (FileChannel ch = FileChannel.open(files[i].toPath(), StandardOpenOption.CREATE,
+                                                       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+                    buf.putInt(lo).putInt(hi).putInt(n);
+                    writeInts(ch, buf, Arrays.copyOfRange(indeg, lo, hi), hi - lo);
+                    flush(ch, buf);
+                    // the sources of the interval are one contiguous run of the binary file
+                    long from = sourcesStart + 4L * offsets[lo], left = 4L * n;
+                    while (left > 0) {
+                        long moved = in.transferTo(from, left, ch);
+                        from += moved;
+                        left -= moved;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Pick the shard intervals so that each holds about the same number of in-links.
+     */
+    private void split(int indeg[], int shards) {
+        if (shards <= 0)
+            shards = (int)Math.max(1, (edges + SHARD_EDGES - 1) / SHARD_EDGES);
+        shards = Math.max(1, Math.min(shards, size));
+        bounds = new int[shards + 1];
+        long total = edges + size, seen = 0;
+        int v = 0;
+        for (int i = 1; i < shards; i++) {
+            long target = total * i / shards;
+            while (v < size && seen + indeg[v] + 1 <= target)
+                seen += indeg[v++] + 1;
+            bounds[i] = v;
+        }
+        bounds[shards] = size;
+    }
+
+    /**
+     * One shard opened for streaming its sources.
+     */
+    class Shard implements Closeable {
+        int lo, hi, edges;
+        // in-degree of each URL of the interval
+        int counts[];
+        private FileChannel ch;
+        // block[at] is the next integer
+        private int at, end;
+
+        Shard(File file) throws IOException {
+            ch = FileChannel.open(file.toPath());
+            if (buf == null) {
+                buf   = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+                block = new int[BUFFER / 4];
+            }
+            buf.clear();
+            lo     = next();
+            hi     = next();
+            edges  = next();
+            counts = new int[hi - lo];
+            for (int v = 0; v < counts.length; v++)
+                counts[v] = next();
+        }
+
+        /**
+         * Next integer of the shard file.
+         */
+        int next() throws IOException {
+            if (at == end)
+                refill();
+            return block[at++];
+        }
+
+        /**
+         * Read the next buffer of the file and decode it into block in one bulk copy.
+         */
+        private void refill() throws IOException {
+            while (buf.position() < 4)
+                if (ch.read(buf) < 0)
+                    throw new EOFException("shard file is truncated");
+            bytesRead += buf.position();
+            buf.flip();
+            end = buf.remaining() / 4;
+            buf.asIntBuffer().get(block, 0, end);
+            buf.position(4 * end);
+            // keep a partial integer for the next read
+            buf.compact();
+            bytesRead -= buf.position();
+            at = 0;
+        }
+
+        public void close() throws IOException {
+            ch.close();
+        }
+    }
+
+    /**
+     * Open shard i for reading.
+     */
+    Shard open(int i) throws IOException {
+        return new Shard(files[i]);
+    }
+
+    int shards() {
+        return files.length;
+    }
+
+    /**
+     * Remove the shard files.
+     */
+    void delete() {
+        for (File f : files)
+            f.delete();
+        if (files.length > 0)
+            files[0].getParentFile().delete();
+    }
+
+    /**
+     * Write n integers of a through buf, flushing whenever it fills.
+     */
+    static void writeInts(FileChannel ch, ByteBuffer buf, int a[], int n) throws IOException {
+        for (int i = 0; i < n; ) {
+            if (buf.remaining() < 4)
+                flush(ch, buf);
+            int k = Math.min(n - i, buf.remaining() / 4);
+            buf.asIntBuffer().put(a, i, k);
+            buf.position(buf.position() + 4 * k);
+            i += k;
+        }
+    }
+
+    static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            ch.write(buf);
+        buf.clear();
+    }
+}
@@ -0,0 +1,17 @@
+#!/bin/sh
+# Iterations saved by extrapolation against the plain csr iteration at the same tolerance.
+# Usage: ./extrapolation.sh [input] [df] [tol] [period] [max iterations]
+# Example: ./extrapolation.sh pagerank.input 0.95 1e-10 10 10000
+
+input=$1; df=$2; tol=$3; period=${4:-10}; max=${5:-10000}
+
+plain=""
+echo "method     iterations  saved  time(ms)"
+for e in none aitken quadratic; do
+    out=$(java SequentialPageRank "$input" /dev/null "$max" "$df" --mode csr --tol "$tol" \
+               --extrapolate "$e" --extrapolate-period "$period" 2>&1 >/dev/null)
+    it=$(echo "$out" | sed -n 's/^Iterations: \([0-9]*\).*/\1/p')
+    ms=$(echo "$out" | sed -n 's/.*Iteration time: \([0-9]*\) ms.*/\1/p')
+    [ -z "$plain" ] && plain=$it
+    echo "$e $it $plain $ms" | awk '{ printf "%-9s  %10d  %5d  %8d\n", $1, $2, $3 - $2, $4 }'
+done
@@ -0,0 +1,17 @@
+#!/bin/sh
+# Speedup report of the csr engine across thread counts.
+# Usage: ./speedup.sh [input] [iterations] [df] [thread counts...]
+# Example: ./speedup.sh pagerank.input 100 0.85 1 2 4 8 16 32
+
+input=$1; iterations=$2; df=$3
+shift 3
+[ $# -eq 0 ] && set -- 1 2 4 8 16 32
+
+base=""
+echo "threads  time(ms)  speedup"
+for t in "$@"; do
+    ms=$(java SequentialPageRank "$input" /dev/null "$iterations" "$df" --mode csr --threads "$t" 2>&1 >/dev/null \
+         | sed -n 's/.*Iteration time: \([0-9]*\) ms.*/\1/p')
+    [ -z "$base" ] && base=$ms
+    echo "$t $ms $base" | awk '{ printf "%7d  %8d  %7.2f\n", $1, $2, ($2 > 0 ? $3 / $2 : 0) }'
+done
@@ -1,6 +1,9 @@
 import java.io.*;
 import java.util.*;
 import java.lang.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
 import mpi.*;
 
 public class MPIPageRank {
@@ -24,21 +27,172 @@ public class MPIPageRank {
     // calculating rank values
     private double rankValues[];
     private int chunkSize;
+    // URLs bounds[r] .. bounds[r + 1] - 1 belong to rank r, this rank's start is offset
+    private int bounds[];
+    private int offset;
+    // "edge" balances the in-links of the ranks, "vertex" their URLs, "lp" refines the edge
+    // partition by label propagation
+    private String partition = "edge";
+    // with --partition lp the URLs are renumbered so that every rank's URLs are contiguous:
+    // perm[v] is the new number of URL v of the input
+    private int perm[];
+    // in-links of this rank's URLs
+    private long localLinks;
+    // threads of the rank updates within each process
+    private int threads = 1;
+    // encoding of the exchanged rank values, "double", "float" or "delta", and the change
+    // below which delta leaves a value out
+    private String encoding = "double";
+    private double deltaThreshold = 0.0;
+    // with --encoding delta: the values the other ranks last received from this one, of the
+    // chunk for allgather and of the send lists for the ghost exchange, null before the first
+    // exchange, which sends the plain values
+    private double shared[];
+    // with --encoding delta: the positions and values of the changed entries sent and received
+    private int deltaSendIndex[], deltaRecvIndex[];
+    private double deltaSendValues[], deltaRecvValues[];
+    // bytes this rank sent to other ranks in all exchanges
+    private long bytesSent = 0;
+    // stop once the change of the rank values falls below this, 0 runs all iterations
+    private double tolerance = 0.0;
+    // norm of the change between iterations, "l1" or "linf"
+    private String norm = "l1";
+    // in-neighbour list encoding, "array" keeps adjMatrix, "varint" packs it into adjBytes
+    private String adjacency = "array";
+    // sorted in-neighbour lists as variable-length gaps: the list of URL offset + i is
+    // adjBytes[adjStart[i]] .. adjBytes[adjStart[i + 1] - 1]
+    private byte adjBytes[];
+    private int adjStart[];
+    // number of highest ranked URLs to output, 0 outputs all
+    private int top = 0;
+    // file for the ranked URLs as binary (url, rank) records, null for none
+    private String binaryOutput = null;
+    // "distributed" ranks and writes the output on every rank, "gather" on rank 0 alone
+    private String output = "distributed";
+    // this rank's final rank values, of URLs offset .. offset + chunkSize - 1
+    private double chunkValues[];
+    // extrapolation of the iteration, "none", "aitken" or "quadratic", and its period
+    private String extrapolate = "none";
+    private int extrapolatePeriod = 10;
+    // this rank's chunk of the iterates just before the end of a period, oldest first
+    private double hist[][];
+    // number of extrapolations done
+    private int extrapolations = 0;
+    // exchange of the updated chunks, "allgather", "p2p" through rank 0, "ghost" or "overlap"
+    private String exchange = "allgather";
+    // with --exchange ghost: the local URLs whose values go to each rank, and the remote URLs
+    // whose values come from each rank, with the count and start of every rank's part
+    private int ghostSend[], ghostSendCounts[], ghostSendDispls[];
+    private int ghostRecv[], ghostRecvCounts[], ghostRecvDispls[];
+    // the exchanged values as floats, with --encoding float: the ghost values, or this rank's
+    // chunk and the whole vector for allgather
+    private float sendFloats[], recvFloats[];
+    // with --exchange overlap: local URLs that read no ghost, and those that do
+    private int interior[], boundary[];
+
+    // binary graph file written by Proj1/CSRGraph: magic, version, size, edges, then
+    // offsets[size + 1], deg[size] and sources[edges] as little-endian integers
+    static final int MAGIC = 0x42475250;
+    static final int VERSION = 1;
+    static final int HEADER = 16;
+    // largest section mapped at once, a multiple of 4 below 2 GB
+    static final int WINDOW = 1 << 30;
+    // rounds of label propagation, and the load a rank may reach relative to the mean
+    static final int LP_ROUNDS = 30;
+    static final double LP_BALANCE = 1.05;
+    // samples per process drawn by every rank for the sample sort of the output
+    static final int SAMPLES = 16;
 
     /**
      * Parse the command line arguments and update the instance variables. Command line arguments are of the form
-     * <input_file_name> <output_file_name> <num_iters> <damp_factor>
+     * <input_file_name> <output_file_name> <num_iters> <damp_factor> [--tol tolerance] [--norm l1|linf]
+     * [--adjacency array|varint] [--top k] [--binary-output file]
+     * [--extrapolate none|aitken|quadratic] [--extrapolate-period n][--exchange allgather|p2p|ghost|overlap]
+     * [--partition edge|vertex|lp] [--threads n] [--encoding double|float|delta] [--delta-threshold t]
+     * [--output distributed|gather]
      *
      * @param args arguments
      */
     public void parseArgs(String[] args) throws IOException {
-        if (args.length != 4)
+	if (args.length < 4 || args.length % 2 != 0)
             throw new IOException("wrong number of arguments");
 
         inputFile  = args[0];
         outputFile = args[1];
         iterations = Integer.parseInt(args[2]);
         df         = Double.parseDouble(args[3]);
+
+	for (int i = 4; i < args.length; i += 2) {
+	    switch (args[i]) {
+	    case "--tol":
+		tolerance = Double.parseDouble(args[i + 1]);
+		break;
+	    case "--norm":
+		norm = args[i + 1];
+		break;
+	    case "--adjacency":
+		adjacency = args[i + 1];
+		break;
+	    case "--top":
+		top = Integer.parseInt(args[i + 1]);
+		break;
+	    case "--binary-output":
+		binaryOutput = args[i + 1];
+		break;
+	    case "--extrapolate":
+		extrapolate = args[i + 1];
+		break;
+	    case "--extrapolate-period":
+		extrapolatePeriod = Integer.parseInt(args[i + 1]);
+		break;
+	    case "--exchange":
+		exchange = args[i + 1];
+		break;
+	    case "--partition":
+		partition = args[i + 1];
+		break;
+	    case "--threads":
+		threads = Integer.parseInt(args[i + 1]);
+		break;
+	    case "--encoding":
+		encoding = args[i + 1];
+		break;
+	    case "--delta-threshold":
+		deltaThreshold = Double.parseDouble(args[i + 1]);
+		break;
+	    case "--output":
+		output = args[i + 1];
+		break;
+	    default:
+		throw new IOException("unknown option " + args[i]);
+	    }
+	}
+	if (!norm.equals("l1") && !norm.equals("linf"))
+	    throw new IOException("unknown norm " + norm);
+	if (!adjacency.equals("array") && !adjacency.equals("varint"))
+	    throw new IOException("unknown adjacency " + adjacency);
+	if (top < 0)
+	    throw new IOException("--top must not be negative");
+	if (!Arrays.asList("none", "aitken", "quadratic").contains(extrapolate))
+	    throw new IOException("unknown extrapolation " + extrapolate);
+	if (!extrapolate.equals("none") && extrapolatePeriod < (extrapolate.equals("quadratic") ? 4 : 3))
+	    throw new IOException("--extrapolate-period must be at least " + (extrapolate.equals("quadratic") ? 4 : 3));
+	if (!Arrays.asList("allgather", "p2p", "ghost", "overlap").contains(exchange))
+	    throw new IOException("unknown exchange " + exchange);
+	if (!Arrays.asList("edge", "vertex", "lp").contains(partition))
+	    throw new IOException("unknown partition " + partition);
+	if (threads < 1)
+	    throw new IOException("--threads must be at least 1");
+	if (!Arrays.asList("double", "float", "delta").contains(encoding))
+	    throw new IOException("unknown encoding " + encoding);
+	if (!output.equals("distributed") && !output.equals("gather"))
+	    throw new IOException("unknown output " + output);
+	if (!encoding.equals("double") && exchange.equals("p2p"))
+	    throw new IOException("--encoding requires --exchange allgather, ghost or overlap");
+	if (encoding.equals("delta") && exchange.equals("overlap"))
+	    throw new IOException("--encoding delta requires --exchange allgather or ghost");
+	if (deltaThreshold < 0.0)
+	    throw new IOException("--delta-threshold must not be negative");
     }
 
     /**
@@ -61,181 +215,1668 @@ public class MPIPageRank {
      * For example the page represented by the 0 URL doesn't refer any other URL. Page
      * represented by 1 refer the URL 2.
      *
+     * Every rank reads the lines starting in its own share of the file's bytes, so parsing takes
+     * the same time on all ranks instead of all of it on rank 0. The number of URLs and the
+     * out-degrees are sums over the ranks and come from Allreduce. The links are packed into
+     * one flat buffer per destination, the rank owning the target URL, and delivered with a
+     * single Alltoallv instead of two messages per inbound list.
+     *
+     * The input may also be a binary graph file written by CSRGraph, see loadBinary. With
+     * --adjacency varint the loaded lists are packed by compress.
+     *
      * @throws java.io.IOException if an error occurs
      */
     public void loadInput() throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+	if (isBinary()) {
+	    loadBinary();
+	    refinePartition();
+	    findGhosts();
+	    compress();
+	    return;
+	}
 
-	if (MPIrank == 0) {
-	    // adjacency matrix read from file, inbound list
-	    HashMap<Integer, ArrayList<Integer>> adjMap = new HashMap<Integer, ArrayList<Integer>>();
-	    // out-degree
-	    HashMap<Integer, Integer> degMap = new HashMap<Integer, Integer>();
-
-	    // processing input file
-	    String line;
-	    while((line = reader.readLine()) != null) {
-		Scanner        scanner = new Scanner(line);
-		int                url = scanner.nextInt();
-
-		degMap.put(url, 0);
-		if (!adjMap.containsKey(url))
-		    adjMap.put(url, new ArrayList<Integer>());
-            
-		while(scanner.hasNextInt()){
-		    int u = scanner.nextInt();
-		    if (!adjMap.containsKey(u))
-			adjMap.put(u, new ArrayList<Integer>());
-		    adjMap.get(u).add(url);
-		    degMap.compute(url, (k,v) -> v + 1);
-		}
+	try (FileChannel ch = FileChannel.open(new File(inputFile).toPath())) {
+	    // this rank parses the lines that start in its share of the bytes
+	    long length = ch.size();
+	    Links links = null;
+	    IOException error = null;
+	    try {
+		links = parse(ch, lineStart(ch, length * MPIrank / MPIsize),
+			      lineStart(ch, length * (MPIrank + 1) / MPIsize));
 	    }
-	    reader.close();
-	    size[0] = degMap.size();
-
-	    // Brocast size of graph
-	    for (int i = 1; i < MPIsize; i++) {
-		MPI.COMM_WORLD.Send(size, 0, 1, MPI.INT, i, 1);
+	    catch (IOException e) {
+		error = e;
 	    }
-	    // caculate chunk size
-	    chunkSize = size[0] / MPIsize;
+	    failTogether(error);
 
-	    // put corresponding part into adjMatrix
-	    adjMatrix = new int[chunkSize][];
-	    for (int i = 0; i < chunkSize; i++)
-		adjMatrix[i] = adjMap.get(i).stream().mapToInt(x -> x).toArray();
+	    // every URL has a line, so the lines of all ranks count the URLs
+	    int lines[] = { links.lines };
+	    MPI.COMM_WORLD.Allreduce(lines, 0, size, 0, 1, MPI.INT, MPI.SUM);
 
-	    // create outbound degree array
+	    for (int i = 0; i < links.lines && error == null; i++)
+		if (links.urls[i] >= size[0])
+		    error = new IOException("URL " + links.urls[i] + " out of range in " + inputFile);
+	    for (int e = 0; e < links.edges && error == null; e++)
+		if (links.targets[e] >= size[0])
+		    error = new IOException("URL " + links.targets[e] + " out of range in " + inputFile);
+	    failTogether(error);
+
+	    // every line is parsed by one rank, so the sum of the partial degrees is the degree
+	    int localDeg[] = new int[size[0]];
+	    for (int i = 0; i < links.lines; i++)
+		localDeg[links.urls[i]] = links.degs[i];
 	    deg = new int[size[0]];
-	    degMap.forEach((k,v) -> deg[k] = v);
+	    MPI.COMM_WORLD.Allreduce(localDeg, 0, deg, 0, size[0], MPI.INT, MPI.SUM);
+	    localDeg = null;
+
+	    // the edge partition needs the in-degrees, summed over the ranks like the out-degrees
+	    int indeg[] = null;
+	    if (!partition.equals("vertex")) {
+		int localIndeg[] = new int[size[0]];
+		for (int e = 0; e < links.edges; e++)
+		    localIndeg[links.targets[e]]++;
+		indeg = new int[size[0]];
+		MPI.COMM_WORLD.Allreduce(localIndeg, 0, indeg, 0, size[0], MPI.INT, MPI.SUM);
+	    }
+	    partition(indeg);
+
+	    // pack every link as (target, source) for the rank that owns the target, in file order
+	    int sendCounts[] = new int[MPIsize], sendDispls[] = new int[MPIsize];
+	    for (int e = 0; e < links.edges; e++)
+		sendCounts[owner(links.targets[e])] += 2;
+	    for (int r = 1; r < MPIsize; r++)
+		sendDispls[r] = sendDispls[r - 1] + sendCounts[r - 1];
+	    int send[] = new int[2 * links.edges];
+	    int at[] = sendDispls.clone();
+	    for (int i = 0, e = 0; i < links.lines; i++) {
+		for (int end = e + links.degs[i]; e < end; e++) {
+		    int r = owner(links.targets[e]);
+		    send[at[r]++] = links.targets[e];
+		    send[at[r]++] = links.urls[i];
+		}
+	    }
+	    links = null;
 
-	    // send corresponding adjMatrix to each node
-	    int length[] = new int[1];
-	    for (int i = chunkSize; i < size[0]; i++) {
-		int recv = i / chunkSize;
-		if (recv >= MPIsize)
-		    recv = MPIsize - 1;
-		
-		length[0] = adjMap.get(i).size();
-		MPI.COMM_WORLD.Send(length, 0, 1, MPI.INT, recv, 1);
-		MPI.COMM_WORLD.Send(adjMap.get(i).stream().mapToInt(x -> x).toArray(),
-				    0, length[0], MPI.INT, recv, 1);
+	    // one all-to-all of the counts, then one of the links
+	    int recvCounts[] = new int[MPIsize], recvDispls[] = new int[MPIsize];
+	    MPI.COMM_WORLD.Alltoall(sendCounts, 0, 1, MPI.INT, recvCounts, 0, 1, MPI.INT);
+	    for (int r = 1; r < MPIsize; r++)
+		recvDispls[r] = recvDispls[r - 1] + recvCounts[r - 1];
+	    int recv[] = new int[recvDispls[MPIsize - 1] + recvCounts[MPIsize - 1]];
+	    MPI.COMM_WORLD.Alltoallv(send, 0, sendCounts, sendDispls, MPI.INT,
+				     recv, 0, recvCounts, recvDispls, MPI.INT);
+	    send = null;
+
+	    // the links arrive by sending rank, which is file order, so every inbound list keeps the
+	    // order of the sequential loader
+	    int fill[] = new int[chunkSize];
+	    for (int p = 0; p < recv.length; p += 2)
+		fill[recv[p] - offset]++;
+	    adjMatrix = new int[chunkSize][];
+	    for (int i = 0; i < chunkSize; i++) {
+		adjMatrix[i] = new int[fill[i]];
+		fill[i] = 0;
 	    }
+	    for (int p = 0; p < recv.length; p += 2) {
+		int i = recv[p] - offset;
+		adjMatrix[i][fill[i]++] = recv[p + 1];
+	    }
+	}
+	refinePartition();
+	findGhosts();
+	compress();
+    }
 
-	    // send outbound degree array to each node
-	    for (int i = 1; i < MPIsize; i++)
-		MPI.COMM_WORLD.Send(deg, 0, size[0], MPI.INT, i, 1);
+    /**
+     * Split the URLs into contiguous ranges, one per rank, and set bounds, offset and chunkSize.
+     * The edge partition cuts where the running count of in-links plus URLs passes each P-th
+     * of the total, as the iteration costs one step per in-link and one per URL; on power-law
+     * graphs this keeps a rank with a few URLs of huge in-degree from holding far more links
+     * than the others. The vertex partition gives every rank size / P URLs and the last one the
+     * remainder.
+     *
+     * @param indeg in-degree of every URL, null for the vertex partition
+     */
+    private void partition(int indeg[]) {
+	bounds = new int[MPIsize + 1];
+	bounds[MPIsize] = size[0];
+	if (indeg == null) {
+	    for (int r = 1; r < MPIsize; r++)
+		bounds[r] = (size[0] / MPIsize) * r;
 	}
 	else {
-	    // Receive size of graph
-	    MPI.COMM_WORLD.Recv(size, 0, 1, MPI.INT, 0, 1);
+	    long total = size[0];
+	    for (int d : indeg)
+		total += d;
+	    long sum = 0;
+	    for (int v = 0, r = 1; v < size[0] && r < MPIsize; v++) {
+		sum += indeg[v] + 1;
+		// URL v + 1 starts every rank whose share of the total is reached
+		while (r < MPIsize && sum * MPIsize >= total * r)
+		    bounds[r++] = v + 1;
+	    }
+	}
+	offset    = bounds[MPIrank];
+	chunkSize = bounds[MPIrank + 1] - offset;
+    }
 
-	    // Caculate chunk size
-	    if (MPIrank == MPIsize - 1)
-		chunkSize = size[0] / MPIsize + size[0] % MPIsize;
+    /**
+     * Rank owning URL url.
+     */
+    private int owner(int url) {
+	int lo = 0, hi = MPIsize - 1;
+	while (lo < hi) {
+	    int mid = (lo + hi + 1) >>> 1;
+	    if (bounds[mid] <= url)
+		lo = mid;
 	    else
-		chunkSize = size[0] / MPIsize;
+		hi = mid - 1;
+	}
+	return lo;
+    }
 
-	    // Receive adjMatrix
-	    adjMatrix = new int[chunkSize][];
-	    int length[] = new int[1];
+    /**
+     * Print the links that cross ranks and the balance of the partition, and with --partition
+     * lp improve the edge partition by label propagation and move the URLs to their new ranks,
+     * see propagateLabels and relabel.
+     */
+    private void refinePartition() {
+	reportPartition(partition.equals("lp") ? "edge" : partition);
+	if (!partition.equals("lp"))
+	    return;
+	relabel(propagateLabels());
+	reportPartition("lp");
+    }
+
+    /**
+     * Print to stderr on rank 0 the number of links whose source belongs to another rank than
+     * their target, which the ghost exchanges send, and the largest load of a rank, in-links
+     * plus URLs, over the mean.
+     */
+    private void reportPartition(String name) {
+	long local[] = { 0, localLoad() }, total[] = new long[2], max[] = new long[1];
+	for (int i = 0; i < chunkSize; i++)
+	    for (int u : adjMatrix[i])
+		if (u < offset || u >= offset + chunkSize)
+		    local[0]++;
+	MPI.COMM_WORLD.Reduce(local, 0, total, 0, 2, MPI.LONG, MPI.SUM, 0);
+	MPI.COMM_WORLD.Reduce(local, 1, max, 0, 1, MPI.LONG, MPI.MAX, 0);
+	long allLinks = total[1] - size[0];
+	if (MPIrank == 0)
+	    System.err.println("Partition: " + name + " |  Cut links: " + total[0] + " ("
+			       + String.format("%.1f", 100.0 * total[0] / Math.max(1, allLinks)) + "%) |  Balance (max/mean): "
+			       + String.format("%.2f", (double)max[0] * MPIsize / Math.max(1, total[1])));
+    }
+
+    /**
+     * In-links plus URLs of this rank, the work of an iteration.
+     */
+    private long localLoad() {
+	long load = chunkSize;
+	for (int i = 0; i < chunkSize; i++)
+	    load += adjMatrix[i].length;
+	return load;
+    }
+
+    /**
+     * Label propagation over the ranks, starting from the current partition. In every round
+     * each URL wants to move to the rank most of its in- and out-neighbours belong to. Moving
+     * all of them would pile URLs onto a few ranks, so the weights wanted between every pair
+     * of ranks are summed with Allreduce and the moves from a to b are granted up to the
+     * weight moving back from b to a, plus an even share of the room b has below LP_BALANCE
+     * times the mean load, after Ugander and Backstrom, "Balanced Label Propagation for
+     * Partitioning Massive Graphs". Every rank takes its part of the grant, URLs of the
+     * largest gain first. The labels of all URLs are then shared with Allgatherv and the
+     * loads with Allreduce. The rounds stop after LP_ROUNDS or once nothing moves.
+     *
+     * Only in-lists are held per rank, so the out-lists of the local URLs are first built with
+     * one Alltoallv of the links, reversed, to the ranks owning their sources.
+     *
+     * @return rank of every URL
+     */
+    private int[] propagateLabels() {
+	int n = size[0];
+	int counts[] = new int[MPIsize], displs[] = new int[MPIsize];
+	int part[] = new int[n];
+	for (int r = 0; r < MPIsize; r++) {
+	    counts[r] = bounds[r + 1] - bounds[r];
+	    displs[r] = bounds[r];
+	    Arrays.fill(part, bounds[r], bounds[r + 1], r);
+	}
+
+	// out-lists of the local URLs as (source, target) pairs from the owners of the targets
+	int sendCounts[] = new int[MPIsize], sendDispls[] = new int[MPIsize];
+	for (int i = 0; i < chunkSize; i++)
+	    for (int u : adjMatrix[i])
+		sendCounts[owner(u)] += 2;
+	for (int r = 1; r < MPIsize; r++)
+	    sendDispls[r] = sendDispls[r - 1] + sendCounts[r - 1];
+	int send[] = new int[sendDispls[MPIsize - 1] + sendCounts[MPIsize - 1]];
+	int at[] = sendDispls.clone();
+	for (int i = 0; i < chunkSize; i++) {
+	    for (int u : adjMatrix[i]) {
+		int r = owner(u);
+		send[at[r]++] = u;
+		send[at[r]++] = offset + i;
+	    }
+	}
+	int recvCounts[] = new int[MPIsize], recvDispls[] = new int[MPIsize];
+	MPI.COMM_WORLD.Alltoall(sendCounts, 0, 1, MPI.INT, recvCounts, 0, 1, MPI.INT);
+	for (int r = 1; r < MPIsize; r++)
+	    recvDispls[r] = recvDispls[r - 1] + recvCounts[r - 1];
+	int recv[] = new int[recvDispls[MPIsize - 1] + recvCounts[MPIsize - 1]];
+	MPI.COMM_WORLD.Alltoallv(send, 0, sendCounts, sendDispls, MPI.INT,
+				 recv, 0, recvCounts, recvDispls, MPI.INT);
+	send = null;
+	int outStart[] = new int[chunkSize + 1], out[] = new int[recv.length / 2];
+	for (int p = 0; p < recv.length; p += 2)
+	    outStart[recv[p] - offset + 1]++;
+	for (int i = 0; i < chunkSize; i++)
+	    outStart[i + 1] += outStart[i];
+	int fill[] = Arrays.copyOf(outStart, chunkSize);
+	for (int p = 0; p < recv.length; p += 2)
+	    out[fill[recv[p] - offset]++] = recv[p + 1];
+	recv = null;
+
+	long load[] = new long[MPIsize], local[] = new long[MPIsize];
+	local[MPIrank] = localLoad();
+	MPI.COMM_WORLD.Allreduce(local, 0, load, 0, MPIsize, MPI.LONG, MPI.SUM);
+	long total = 0;
+	for (long l : load)
+	    total += l;
+	long cap = (long)(LP_BALANCE * total / MPIsize);
+
+	int votes[] = new int[MPIsize], seen[] = new int[MPIsize];
+	int mine[] = new int[chunkSize], want[] = new int[chunkSize];
+	// moves wanted by this rank, as (gain, local URL) with the largest gain first
+	long wanted[] = new long[chunkSize];
+	long moved[] = new long[1], allMoved[] = new long[1];
+	for (int round = 0; round < LP_ROUNDS; round++) {
+	    // the rank most neighbours of every URL belong to, and the weight wanted from rank a to b
+	    long flow[] = new long[MPIsize * MPIsize], allFlow[] = new long[MPIsize * MPIsize];
+	    int wants = 0;
 	    for (int i = 0; i < chunkSize; i++) {
-		MPI.COMM_WORLD.Recv(length, 0, 1, MPI.INT, 0, 1);
-		adjMatrix[i] = new int[length[0]];
-		MPI.COMM_WORLD.Recv(adjMatrix[i], 0, length[0], MPI.INT, 0, 1);
+		int cur = part[offset + i];
+		int kinds = 0;
+		for (int u : adjMatrix[i])
+		    if (votes[part[u]]++ == 0)
+			seen[kinds++] = part[u];
+		for (int e = outStart[i]; e < outStart[i + 1]; e++)
+		    if (votes[part[out[e]]]++ == 0)
+			seen[kinds++] = part[out[e]];
+		// ties stay with the current rank, or go to the lower of two others
+		int best = cur;
+		for (int k = 0; k < kinds; k++) {
+		    int r = seen[k];
+		    if (r != cur && (votes[r] > votes[best] || votes[r] == votes[best] && best != cur && r < best))
+			best = r;
+		}
+		int gain = votes[best] - votes[cur];
+		for (int k = 0; k < kinds; k++)
+		    votes[seen[k]] = 0;
+		mine[i] = cur;
+		want[i] = best;
+		if (gain > 0) {
+		    flow[cur * MPIsize + best] += adjMatrix[i].length + 1;
+		    wanted[wants++] = -((long)gain << 32 | i);
+		}
+	    }
+	    Arrays.sort(wanted, 0, wants);
+	    MPI.COMM_WORLD.Allreduce(flow, 0, allFlow, 0, flow.length, MPI.LONG, MPI.SUM);
+
+	    // moves from a to b are granted up to those back from b to a, plus a share of the room
+	    // b has below the cap; every rank gets its part of that in proportion to what it wants
+	    long quota[] = new long[MPIsize * MPIsize];
+	    for (int a = 0; a < MPIsize; a++) {
+		for (int b = 0; b < MPIsize; b++) {
+		    long all = allFlow[a * MPIsize + b];
+		    if (all == 0)
+			continue;
+		    long granted = Math.min(all, allFlow[b * MPIsize + a] + Math.max(0, cap - load[b]) / MPIsize);
+		    quota[a * MPIsize + b] = (long)((double)granted * flow[a * MPIsize + b] / all);
+		}
+	    }
+	    Arrays.fill(local, 0);
+	    moved[0] = 0;
+	    for (int k = 0; k < wants; k++) {
+		int i = (int)(-wanted[k] & 0xffffffffL);
+		int cur = mine[i], w = adjMatrix[i].length + 1, q = cur * MPIsize + want[i];
+		if (quota[q] < w)
+		    continue;
+		quota[q] -= w;
+		mine[i] = want[i];
+		local[want[i]] += w;
+		local[cur]     -= w;
+		moved[0]++;
+	    }
+
+	    MPI.COMM_WORLD.Allgatherv(mine, 0, chunkSize, MPI.INT, part, 0, counts, displs, MPI.INT);
+	    long change[] = new long[MPIsize];
+	    MPI.COMM_WORLD.Allreduce(local, 0, change, 0, MPIsize, MPI.LONG, MPI.SUM);
+	    for (int r = 0; r < MPIsize; r++)
+		load[r] += change[r];
+	    MPI.COMM_WORLD.Allreduce(moved, 0, allMoved, 0, 1, MPI.LONG, MPI.SUM);
+	    if (MPIrank == 0)
+		System.err.println("Label propagation round: " + (round + 1) + " |  Moved URLs: " + allMoved[0]);
+	    if (allMoved[0] == 0)
+		break;
+	}
+	return part;
+    }
+
+    /**
+     * Renumber the URLs so that those of every rank in part are contiguous, by rank and then by
+     * input number, and send every inbound list to its new rank with one Alltoallv, as its new
+     * URL number, its length and its renumbered sources. The lists keep their order, so the
+     * rank values come out exactly as without the renumbering; perm maps them back for the
+     * output.
+     */
+    private void relabel(int part[]) {
+	int n = size[0];
+	int newBounds[] = new int[MPIsize + 1];
+	for (int v = 0; v < n; v++)
+	    newBounds[part[v] + 1]++;
+	for (int r = 0; r < MPIsize; r++)
+	    newBounds[r + 1] += newBounds[r];
+	perm = new int[n];
+	int next[] = Arrays.copyOf(newBounds, MPIsize);
+	for (int v = 0; v < n; v++)
+	    perm[v] = next[part[v]]++;
+
+	int sendCounts[] = new int[MPIsize], sendDispls[] = new int[MPIsize];
+	for (int i = 0; i < chunkSize; i++)
+	    sendCounts[part[offset + i]] += 2 + adjMatrix[i].length;
+	for (int r = 1; r < MPIsize; r++)
+	    sendDispls[r] = sendDispls[r - 1] + sendCounts[r - 1];
+	int send[] = new int[sendDispls[MPIsize - 1] + sendCounts[MPIsize - 1]];
+	int at[] = sendDispls.clone();
+	for (int i = 0; i < chunkSize; i++) {
+	    int r = part[offset + i];
+	    send[at[r]++] = perm[offset + i];
+	    send[at[r]++] = adjMatrix[i].length;
+	    for (int u : adjMatrix[i])
+		send[at[r]++] = perm[u];
+	}
+	adjMatrix = null;
+	int recvCounts[] = new int[MPIsize], recvDispls[] = new int[MPIsize];
+	MPI.COMM_WORLD.Alltoall(sendCounts, 0, 1, MPI.INT, recvCounts, 0, 1, MPI.INT);
+	for (int r = 1; r < MPIsize; r++)
+	    recvDispls[r] = recvDispls[r - 1] + recvCounts[r - 1];
+	int recv[] = new int[recvDispls[MPIsize - 1] + recvCounts[MPIsize - 1]];
+	MPI.COMM_WORLD.Alltoallv(send, 0, sendCounts, sendDispls, MPI.INT,
+				 recv, 0, recvCounts, recvDispls, MPI.INT);
+	send = null;
+
+	bounds    = newBounds;
+	offset    = bounds[MPIrank];
+	chunkSize = bounds[MPIrank + 1] - offset;
+	adjMatrix = new int[chunkSize][];
+	for (int p = 0; p < recv.length; ) {
+	    int i = recv[p++] - offset, len = recv[p++];
+	    adjMatrix[i] = Arrays.copyOfRange(recv, p, p + len);
+	    p += len;
+	}
+
+	int renumbered[] = new int[n];
+	for (int v = 0; v < n; v++)
+	    renumbered[perm[v]] = deg[v];
+	deg = renumbered;
+    }
+
+    /**
+     * With --exchange ghost, find the remote URLs this rank reads, its ghosts, and tell every
+     * rank which of its URLs to send here. The ghosts are collected in increasing order, which
+     * groups them by owner as the ranges are contiguous; one Alltoall of the counts and one
+     * Alltoallv of the URL numbers give every rank its send lists. Rank 0 prints the values
+     * sent per iteration next to those of the Allgatherv exchange.
+     *
+     * The local URLs are also split into interior ones, whose in-neighbours are all local, and
+     * boundary ones, which read at least one ghost, for --exchange overlap.
+     */
+    private void findGhosts() {
+	if (!exchange.equals("ghost") && !exchange.equals("overlap"))
+	    return;
+	boolean needed[] = new boolean[size[0]];
+	int inner[] = new int[chunkSize], outer[] = new int[chunkSize];
+	int inners = 0, outers = 0;
+	for (int i = 0; i < chunkSize; i++) {
+	    boolean local = true;
+	    for (int u : adjMatrix[i]) {
+		if (u < offset || u >= offset + chunkSize) {
+		    needed[u] = true;
+		    local = false;
+		}
+	    }
+	    if (local)
+		inner[inners++] = i;
+	    else
+		outer[outers++] = i;
+	}
+	interior = Arrays.copyOf(inner, inners);
+	boundary = Arrays.copyOf(outer, outers);
+
+	ghostRecvCounts = new int[MPIsize];
+	ghostRecvDispls = new int[MPIsize];
+	int count = 0;
+	for (int v = 0, r = 0; v < size[0]; v++) {
+	    if (!needed[v])
+		continue;
+	    while (v >= bounds[r + 1])
+		r++;
+	    ghostRecvCounts[r]++;
+	    count++;
+	}
+	ghostRecv = new int[count];
+	for (int v = 0, at = 0; v < size[0]; v++)
+	    if (needed[v])
+		ghostRecv[at++] = v;
+	for (int r = 1; r < MPIsize; r++)
+	    ghostRecvDispls[r] = ghostRecvDispls[r - 1] + ghostRecvCounts[r - 1];
+
+	// the lists of ghosts this rank needs are the send lists of their owners
+	ghostSendCounts = new int[MPIsize];
+	ghostSendDispls = new int[MPIsize];
+	MPI.COMM_WORLD.Alltoall(ghostRecvCounts, 0, 1, MPI.INT, ghostSendCounts, 0, 1, MPI.INT);
+	for (int r = 1; r < MPIsize; r++)
+	    ghostSendDispls[r] = ghostSendDispls[r - 1] + ghostSendCounts[r - 1];
+	ghostSend = new int[ghostSendDispls[MPIsize - 1] + ghostSendCounts[MPIsize - 1]];
+	MPI.COMM_WORLD.Alltoallv(ghostRecv, 0, ghostRecvCounts, ghostRecvDispls, MPI.INT,
+				 ghostSend, 0, ghostSendCounts, ghostSendDispls, MPI.INT);
+
+	long local[] = { count, boundary.length }, total[] = new long[2];
+	MPI.COMM_WORLD.Reduce(local, 0, total, 0, 2, MPI.LONG, MPI.SUM, 0);
+	if (MPIrank == 0) {
+	    System.err.println("Ghosts: " + total[0] + " |  Values sent per iteration: " + total[0]
+			       + " (allgather: " + (long)size[0] * (MPIsize - 1) + ")");
+	    if (exchange.equals("overlap"))
+		System.err.println("Boundary URLs: " + total[1] + " |  Interior URLs: " + (size[0] - total[1]));
+	}
+    }
+
+    /**
+     * Links of the lines one rank parses, in file order. Line i has URL urls[i] and its degs[i]
+     * out-links are the next degs[i] entries of targets.
+     */
+    static class Links {
+	int lines;
+	int urls[]    = new int[1024];
+	int degs[]    = new int[1024];
+	int edges;
+	int targets[] = new int[1024];
+    }
+
+    /**
+     * Find the first line starting at or after byte pos.
+     */
+    static long lineStart(FileChannel ch, long pos) throws IOException {
+	if (pos == 0)
+	    return 0;
+	ByteBuffer buf = ByteBuffer.allocate(4096);
+	// the byte before pos decides whether pos itself starts a line
+	for (long at = pos - 1; ; at += buf.limit()) {
+	    buf.clear();
+	    if (ch.read(buf, at) <= 0)
+		return ch.size();
+	    buf.flip();
+	    for (int i = 0; i < buf.limit(); i++)
+		if (buf.get(i) == '\n')
+		    return at + i + 1;
+	}
+    }
+
+    /**
+     * Parse the lines in bytes lo .. hi - 1 of the file, with a tokenizer that reads the bytes
+     * through one buffer and creates no objects per number.
+     */
+    static Links parse(FileChannel ch, long lo, long hi) throws IOException {
+	Links c = new Links();
+	ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+	byte bytes[] = buf.array();
+	// value of the number being read, -1 between numbers
+	long value = -1;
+	// whether the current line still needs its URL
+	boolean first = true;
+
+	for (long pos = lo; pos < hi || value >= 0; ) {
+	    int n = 0;
+	    if (pos < hi) {
+		buf.clear();
+		buf.limit((int)Math.min(buf.capacity(), hi - pos));
+		n = ch.read(buf, pos);
+	    }
+	    if (n <= 0) {
+		// last line without a newline
+		bytes[0] = '\n';
+		n = 1;
+		pos = hi;
+	    }
+	    else
+		pos += n;
+	    for (int i = 0; i < n; i++) {
+		int b = bytes[i];
+		if (b >= '0' && b <= '9') {
+		    value = (value < 0 ? 0 : value * 10) + (b - '0');
+		    if (value > Integer.MAX_VALUE)
+			throw new IOException("URL out of range near byte " + (pos - n + i));
+		    continue;
+		}
+		if (b != ' ' && b != '\t' && b != '\n' && b != '\r')
+		    throw new IOException("unexpected character near byte " + (pos - n + i));
+		if (value >= 0) {
+		    if (first) {
+			if (c.lines == c.urls.length) {
+			    c.urls = Arrays.copyOf(c.urls, 2 * c.lines);
+			    c.degs = Arrays.copyOf(c.degs, 2 * c.lines);
+			}
+			c.urls[c.lines++] = (int)value;
+		    }
+		    else {
+			if (c.edges == c.targets.length)
+			    c.targets = Arrays.copyOf(c.targets, 2 * c.edges);
+			c.targets[c.edges++] = (int)value;
+			c.degs[c.lines - 1]++;
+		    }
+		    first = false;
+		    value = -1;
+		}
+		if (b == '\n')
+		    first = true;
+	    }
+	}
+	return c;
+    }
+
+    /**
+     * Check whether the input file starts with the binary graph magic.
+     */
+    private boolean isBinary() throws IOException {
+	try (FileChannel ch = FileChannel.open(new File(inputFile).toPath())) {
+	    ByteBuffer head = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+	    while (head.hasRemaining() && ch.read(head) >= 0)
+		;
+	    return !head.hasRemaining() && head.getInt(0) == MAGIC;
+	}
+    }
+
+    /**
+     * Memory-map a binary graph file and copy out this rank's chunk of the inbound lists plus
+     * the whole out-degree array. Every rank maps the file itself, so no messages are needed and
+     * ranks on the same node share the file through the page cache.
+     *
+     * @throws java.io.IOException if an error occurs
+     */
+    private void loadBinary() throws IOException {
+	try (FileChannel ch = FileChannel.open(new File(inputFile).toPath())) {
+	    IntBuffer head = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER)
+		.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	    if (head.get(0) != MAGIC || head.get(1) != VERSION)
+		throw new IOException(inputFile + " is not a binary graph file");
+	    size[0] = head.get(2);
+	    int edges = head.get(3);
+
+	    // the in-degrees of the edge partition are the gaps between the offsets of all URLs
+	    int indeg[] = null;
+	    if (!partition.equals("vertex")) {
+		int all[] = new int[size[0] + 1];
+		readInts(ch, HEADER, all, size[0] + 1);
+		indeg = new int[size[0]];
+		for (int v = 0; v < size[0]; v++)
+		    indeg[v] = all[v + 1] - all[v];
 	    }
+	    partition(indeg);
+
+	    int offsets[] = new int[chunkSize + 1];
+	    readInts(ch, HEADER + 4L * offset, offsets, chunkSize + 1);
 
-	    // Receive outbound degree array
 	    deg = new int[size[0]];
-	    MPI.COMM_WORLD.Recv(deg, 0, size[0], MPI.INT, 0, 1);
+	    long degStart = HEADER + 4L * (size[0] + 1);
+	    readInts(ch, degStart, deg, size[0]);
+
+	    int sources[] = new int[offsets[chunkSize] - offsets[0]];
+	    readInts(ch, degStart + 4L * (size[0] + offsets[0]), sources, sources.length);
+
+	    adjMatrix = new int[chunkSize][];
+	    for (int i = 0; i < chunkSize; i++)
+		adjMatrix[i] = Arrays.copyOfRange(sources, offsets[i] - offsets[0], offsets[i + 1] - offsets[0]);
+	}
+    }
+
+    /**
+     * With --adjacency varint, replace adjMatrix by a byte encoding. Every list is sorted and
+     * stored as the gaps between consecutive URLs, the first against 0, in 7-bit groups with the
+     * high bit marking that another group follows. Most gaps of a sorted list fit in one or two
+     * bytes, so an iteration reads far fewer bytes than with the int arrays, at the price of
+     * decoding them. Lists read from an input in URL order are sorted already and the ranks are
+     * unchanged; otherwise sorting changes the order of the sums and they agree up to rounding.
+     */
+    private void compress() {
+	long bytes = 0, links = 0;
+	if (adjacency.equals("varint")) {
+	    adjStart = new int[chunkSize + 1];
+	    byte buf[] = new byte[1024];
+	    int at = 0;
+	    for (int i = 0; i < chunkSize; i++) {
+		int lst[] = adjMatrix[i];
+		Arrays.sort(lst);
+		if (buf.length - at < 5 * lst.length)
+		    buf = Arrays.copyOf(buf, Math.max(at + 5 * lst.length, 2 * buf.length));
+		int prev = 0;
+		for (int u : lst) {
+		    int gap = u - prev;
+		    prev = u;
+		    while ((gap & ~0x7f) != 0) {
+			buf[at++] = (byte)(gap | 0x80);
+			gap >>>= 7;
+		    }
+		    buf[at++] = (byte)gap;
+		}
+		adjStart[i + 1] = at;
+		links += lst.length;
+		// let the list go while the rest is packed
+		adjMatrix[i] = null;
+	    }
+	    adjBytes  = Arrays.copyOf(buf, at);
+	    adjMatrix = null;
+	    bytes = at + 4L * (chunkSize + 1);
+	}
+	else {
+	    for (int i = 0; i < chunkSize; i++)
+		links += adjMatrix[i].length;
+	    // int payload plus the header and the reference of each array
+	    bytes = 4L * links + 24L * chunkSize;
+	}
+
+	localLinks = links;
+
+	// report the total over all ranks
+	long local[] = { links, bytes };
+	long total[] = new long[2];
+	MPI.COMM_WORLD.Reduce(local, 0, total, 0, 2, MPI.LONG, MPI.SUM, 0);
+	if (MPIrank == 0)
+	    System.err.println("Adjacency: " + adjacency + " |  Links: " + total[0] + " |  Bytes: " + total[1]
+			       + " (" + String.format("%.2f", (double)total[1] / Math.max(1, total[0])) + " per link)");
+    }
+
+    /**
+     * Copy count integers starting at byte pos of the file into dst.
+     */
+    private static void readInts(FileChannel ch, long pos, int dst[], int count) throws IOException {
+	for (int at = 0; at < count; ) {
+	    int n = Math.min(count - at, WINDOW / 4);
+	    ch.map(FileChannel.MapMode.READ_ONLY, pos, 4L * n)
+		.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dst, at, n);
+	    pos += 4L * n;
+	    at  += n;
 	}
     }
 
     /**
      * Do fixed number of iterations and calculate the page rank values. You may keep the
      * intermediate page rank values in a hash table.
+     *
+     * With a tolerance the iterations stop early once the L1 or L-infinity change of the rank
+     * values falls below it. Every rank measures the change of its own chunk and an Allreduce
+     * combines them, so all ranks stop after the same iteration.
+     *
+     * With --extrapolate the rank vector is extrapolated every --extrapolate-period iterations
+     * that did not yet reach the tolerance, see extrapolate.
+     *
+     * After every iteration the updated chunks are exchanged with one Allgatherv, so every rank
+     * holds the whole rank vector for the next one and the traffic is spread over all ranks.
+     * With --exchange p2p rank 0 receives every chunk and sends the whole vector to each rank
+     * instead, moving O(P * N) values through one process; it is kept to compare the two.
+     * With --exchange ghost every rank receives only the values of its ghosts, the remote
+     * in-neighbours found by findGhosts, with one Alltoallv; that is one value per rank and
+     * remote URL it reads, at most the number of cut links, instead of P - 1 times the vector.
+     * The other entries of rankValues are then stale, so the chunks are gathered on rank 0
+     * once at the end for the output.
+     *
+     * --exchange overlap sends the same values with non-blocking point-to-point messages, one
+     * Isend and Irecv per pair of ranks that share ghosts. They are posted at the start of an
+     * iteration, the interior URLs are updated while they are in flight, and only the boundary
+     * URLs wait for them, so the latency is hidden behind the interior work.
+     *
+     * --encoding float and delta shrink the exchanged values at the cost of an error, see
+     * shareChunks and shareGhosts. The final values are gathered on rank 0 in full precision,
+     * so the error is only that of the iteration, bounded by errorBound. Rank 0 prints the
+     * bytes sent per iteration by all ranks, for every encoding.
+     *
+     * With --threads the rank updates of a process are split over a thread pool, see update;
+     * all MPI calls stay on the main thread, so a single rank per node can use every core
+     * while rankValues and deg are held once per node.
+     *
+     * Every rank times its own rank updates; rank 0 prints them with the URLs and in-links of
+     * every rank, see loadReport.
      */
     public void calculatePageRank() {
         double vals[] = new double[chunkSize];
-	int offset = (size[0]/MPIsize) * MPIrank;
 	rankValues = new double[size[0]];
 
-	// initialization
-	if (MPIrank == 0) {
-	    for(int i = 0; i < rankValues.length; i++)
-		rankValues[i] = 1.0/(double)size[0];
+	// chunk length and start of every rank
+	int counts[] = new int[MPIsize], displs[] = new int[MPIsize];
+	for (int i = 0; i < MPIsize; i++) {
+	    counts[i] = bounds[i + 1] - bounds[i];
+	    displs[i] = bounds[i];
 	}
-        
-        for(int iter = 0; iter < iterations; iter++) {
-	    if (MPIrank == 0) {
-		// send rankValues to every node
-		for (int recv = 1; recv < MPIsize; recv++)
-		    MPI.COMM_WORLD.Send(rankValues, 0, size[0], MPI.DOUBLE, recv, 1);
+
+	// initialization, on every rank so that no first broadcast is needed
+	for(int i = 0; i < rankValues.length; i++)
+	    rankValues[i] = 1.0/(double)size[0];
+	// this rank's chunk after the last iteration, the start vector if there is none
+	Arrays.fill(vals, 1.0/(double)size[0]);
+
+	boolean ghosts = exchange.equals("ghost") || exchange.equals("overlap");
+	double sendVals[] = null, recvVals[] = null;
+	if (ghosts) {
+	    sendVals = new double[ghostSend.length];
+	    recvVals = new double[ghostRecv.length];
+	}
+	if (encoding.equals("delta")) {
+	    shared = null;
+	    deltaSendIndex = new int[ghosts ? ghostSend.length : chunkSize];
+	    deltaRecvIndex = new int[ghosts ? ghostRecv.length : size[0]];
+	    if (!ghosts) {
+		deltaSendValues = new double[chunkSize];
+		deltaRecvValues = new double[size[0]];
 	    }
-	    else {
-		// receive rankValues
-		MPI.COMM_WORLD.Recv(rankValues, 0, size[0], MPI.DOUBLE, 0, 1);
+	}
+	else if (encoding.equals("float") && !ghosts) {
+	    sendFloats = new float[chunkSize];
+	    recvFloats = new float[size[0]];
+	}
+
+	boolean overlap = exchange.equals("overlap");
+	int ranges[] = overlap ? null : ranges(null, chunkSize);
+	int interiorRanges[] = overlap ? ranges(interior, interior.length) : null;
+	int boundaryRanges[] = overlap ? ranges(boundary, boundary.length) : null;
+	ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
+	double start = MPI.Wtime(), compute = 0.0;
+	int iter = 0;
+	double residual[] = new double[1];
+	double localResidual[] = new double[1];
+	while (iter < iterations) {
+	    if (exchange.equals("p2p") && iter > 0) {
+		if (MPIrank == 0) {
+		    // send rankValues to every node
+		    for (int recv = 1; recv < MPIsize; recv++)
+			MPI.COMM_WORLD.Send(rankValues, 0, size[0], MPI.DOUBLE, recv, 1);
+		    bytesSent += 8L * size[0] * (MPIsize - 1);
+		}
+		else {
+		    // receive rankValues
+		    MPI.COMM_WORLD.Recv(rankValues, 0, size[0], MPI.DOUBLE, 0, 1);
+		}
 	    }
 
 	    // update rankValues
-            for(int i = 0; i < chunkSize; i++) {
-	    	double pr = 0.0;
-	    	for(int u = 0; u < adjMatrix[i].length; u++)
-	    	    pr += rankValues[adjMatrix[i][u]] / (double)deg[adjMatrix[i][u]];
+	    double computeStart = MPI.Wtime();
+	    if (overlap) {
+		// the values of the last iteration travel while the interior URLs are updated; the
+		// start values are the same everywhere and need no exchange
+		Request reqs[] = iter > 0 ? postGhosts(sendVals, recvVals) : null;
+		localResidual[0] = updateAll(pool, interior, interiorRanges, vals);
+		compute += MPI.Wtime() - computeStart;
 
-	    	if (deg[offset + i] == 0)
-	    	    pr += rankValues[offset + i];
-
-	    	vals[i] = (1.0 - df)/(double)size[0] + df * pr;
+		if (reqs != null) {
+		    Request.Waitall(reqs);
+		    unpackGhosts(recvVals);
+		}
+		computeStart = MPI.Wtime();
+		localResidual[0] = accumulate(localResidual[0], updateAll(pool, boundary, boundaryRanges, vals));
 	    }
+	    else
+		localResidual[0] = updateAll(pool, null, ranges, vals);
+	    compute += MPI.Wtime() - computeStart;
 
-            if (MPIrank == 0) {
+	    // combine the change of every chunk
+	    MPI.COMM_WORLD.Allreduce(localResidual, 0, residual, 0, 1, MPI.DOUBLE,
+				     norm.equals("l1") ? MPI.SUM : MPI.MAX);
+	    iter++;
+	    if (residual[0] >= tolerance && !extrapolate.equals("none"))
+		extrapolate(iter, vals);
+
+	    if (exchange.equals("allgather")) {
+		// every rank contributes its chunk and receives all others
+		shareChunks(vals, counts, displs);
+	    }
+	    else if (exchange.equals("ghost")) {
+		// own chunk in place, then the values the other ranks read from it
+		System.arraycopy(vals, 0, rankValues, offset, chunkSize);
+		shareGhosts(sendVals, recvVals);
+	    }
+	    else if (overlap) {
+		// sent at the start of the next iteration
+		System.arraycopy(vals, 0, rankValues, offset, chunkSize);
+	    }
+	    else if (MPIrank == 0) {
 		// copy updated results back to rankValues
 		for (int i = 0; i < chunkSize; i++)
 		    rankValues[i] = vals[i];
 
 		// receive updated results from other nodes
 		for(int i = 1; i < MPIsize; i++)
-		    MPI.COMM_WORLD.Recv(rankValues, i * chunkSize,
-					chunkSize + (i == MPIsize - 1 ? size[0] % MPIsize : 0),
-					MPI.DOUBLE, i, 1);
+		    MPI.COMM_WORLD.Recv(rankValues, displs[i], counts[i], MPI.DOUBLE, i, 1);
 	    }
 	    else {
 		// send updated results to node 0
 		MPI.COMM_WORLD.Send(vals, 0, chunkSize, MPI.DOUBLE, 0, 1);
+		bytesSent += 8L * chunkSize;
 	    }
+
+	    if (residual[0] < tolerance)
+		break;
         }
+	chunkValues = vals;
+	if (output.equals("gather") && (ghosts || !encoding.equals("double")))
+	    MPI.COMM_WORLD.Gatherv(vals, 0, chunkSize, MPI.DOUBLE, rankValues, 0, counts, displs, MPI.DOUBLE, 0);
+	long bytes[] = { bytesSent }, allBytes[] = new long[1];
+	MPI.COMM_WORLD.Reduce(bytes, 0, allBytes, 0, 1, MPI.LONG, MPI.SUM, 0);
+	if (perm != null && MPIrank == 0 && output.equals("gather")) {
+	    // back to the URL numbers of the input
+	    double renumbered[] = rankValues;
+	    rankValues = new double[size[0]];
+	    for (int v = 0; v < size[0]; v++)
+		rankValues[v] = renumbered[perm[v]];
+	}
+
+	if (MPIrank == 0) {
+	    System.err.println("Iterations: " + iter + " |  Residual (" + norm + "): " + residual[0]);
+	    if (!extrapolate.equals("none"))
+		System.err.println("Extrapolations: " + extrapolations + " (" + extrapolate + ", every "
+				   + extrapolatePeriod + " iterations)");
+	    System.err.println("Encoding: " + encoding + " |  Bytes sent per iteration: " + allBytes[0] / Math.max(1, iter)
+			       + (encoding.equals("double") ? "" : " |  Error bound (l1): " + errorBound()));
+	    System.err.println("Processes: " + MPIsize + " |  Threads: " + threads + " |  Exchange: " + exchange
+			       + " |  Iteration time: "
+			       + Math.round(1000.0 * (MPI.Wtime() - start)) + " ms");
+	}
+	loadReport(compute);
+	if (pool != null)
+	    pool.shutdown();
+    }
+
+    /**
+     * Post the exchange of the ghost values from rankValues, see findGhosts: an Irecv from and
+     * an Isend to every rank that shares ghosts with this one. With --encoding float the values
+     * travel as floats through float buffers of the same lengths, and recvVals is filled from
+     * them once the requests are done, see unpackGhosts.
+     *
+     * @return requests to wait for before recvVals is read or sendVals reused
+     */
+    private Request[] postGhosts(double sendVals[], double recvVals[]) {
+	boolean single = encoding.equals("float");
+	if (single && sendFloats == null) {
+	    sendFloats = new float[ghostSend.length];
+	    recvFloats = new float[ghostRecv.length];
+	}
+	for (int k = 0; k < ghostSend.length; k++) {
+	    if (single)
+		sendFloats[k] = (float)rankValues[ghostSend[k]];
+	    else
+		sendVals[k] = rankValues[ghostSend[k]];
+	}
+	bytesSent += (single ? 4L : 8L) * ghostSend.length;
+	ArrayList<Request> reqs = new ArrayList<Request>();
+	for (int r = 0; r < MPIsize; r++) {
+	    if (ghostRecvCounts[r] > 0)
+		reqs.add(MPI.COMM_WORLD.Irecv(single ? recvFloats : recvVals, ghostRecvDispls[r], ghostRecvCounts[r],
+					      single ? MPI.FLOAT : MPI.DOUBLE, r, 2));
+	    if (ghostSendCounts[r] > 0)
+		reqs.add(MPI.COMM_WORLD.Isend(single ? sendFloats : sendVals, ghostSendDispls[r], ghostSendCounts[r],
+					      single ? MPI.FLOAT : MPI.DOUBLE, r, 2));
+	}
+	return reqs.toArray(new Request[reqs.size()]);
+    }
+
+    /**
+     * Copy the received ghost values into rankValues.
+     */
+    private void unpackGhosts(double recvVals[]) {
+	boolean single = encoding.equals("float");
+	for (int k = 0; k < ghostRecv.length; k++)
+	    rankValues[ghostRecv[k]] = single ? recvFloats[k] : recvVals[k];
+    }
+
+    /**
+     * Exchange the chunks of all ranks into rankValues, for --exchange allgather. double sends
+     * the chunk with Allgatherv. float sends it rounded to floats, half the bytes. delta sends
+     * only the values that changed by more than --delta-threshold since this rank last sent
+     * them, as (URL, value) pairs: an Allgather of the pair counts, then an Allgatherv each of
+     * the URLs and the values; its first exchange sends the plain values, as every value has
+     * changed and pairs would cost more. Either way a rank keeps its own chunk exact. The
+     * buffers are allocated once in calculatePageRank.
+     */
+    private void shareChunks(double vals[], int counts[], int displs[]) {
+	if (encoding.equals("double") || encoding.equals("delta") && shared == null) {
+	    MPI.COMM_WORLD.Allgatherv(vals, 0, chunkSize, MPI.DOUBLE, rankValues, 0, counts, displs, MPI.DOUBLE);
+	    bytesSent += 8L * chunkSize * (MPIsize - 1);
+	    if (encoding.equals("delta"))
+		shared = Arrays.copyOf(vals, chunkSize);
+	    return;
+	}
+	if (encoding.equals("float")) {
+	    for (int i = 0; i < chunkSize; i++)
+		sendFloats[i] = (float)vals[i];
+	    MPI.COMM_WORLD.Allgatherv(sendFloats, 0, chunkSize, MPI.FLOAT, recvFloats, 0, counts, displs, MPI.FLOAT);
+	    for (int v = 0; v < size[0]; v++)
+		rankValues[v] = recvFloats[v];
+	    System.arraycopy(vals, 0, rankValues, offset, chunkSize);
+	    bytesSent += 4L * chunkSize * (MPIsize - 1);
+	    return;
+	}
+
+	int n = 0;
+	for (int i = 0; i < chunkSize; i++) {
+	    if (Math.abs(vals[i] - shared[i]) > deltaThreshold) {
+		shared[i]            = vals[i];
+		deltaSendIndex[n]    = offset + i;
+		deltaSendValues[n++] = vals[i];
+	    }
+	}
+	int mine[] = { n }, all[] = new int[MPIsize], starts[] = new int[MPIsize];
+	MPI.COMM_WORLD.Allgather(mine, 0, 1, MPI.INT, all, 0, 1, MPI.INT);
+	for (int r = 1; r < MPIsize; r++)
+	    starts[r] = starts[r - 1] + all[r - 1];
+	int total = starts[MPIsize - 1] + all[MPIsize - 1];
+	MPI.COMM_WORLD.Allgatherv(deltaSendIndex, 0, n, MPI.INT, deltaRecvIndex, 0, all, starts, MPI.INT);
+	MPI.COMM_WORLD.Allgatherv(deltaSendValues, 0, n, MPI.DOUBLE, deltaRecvValues, 0, all, starts, MPI.DOUBLE);
+	for (int k = 0; k < total; k++)
+	    rankValues[deltaRecvIndex[k]] = deltaRecvValues[k];
+	System.arraycopy(vals, 0, rankValues, offset, chunkSize);
+	bytesSent += (4L + 12L * n) * (MPIsize - 1);
+    }
+
+    /**
+     * Exchange the ghost values, for --exchange ghost, with one Alltoallv of the send lists of
+     * findGhosts. float sends them as floats; delta sends only those that changed by more than
+     * --delta-threshold since they were last sent, as (position in the list, value) pairs
+     * after an Alltoall of the pair counts, except at its first exchange, which sends them all
+     * as plain values.
+     */
+    private void shareGhosts(double sendVals[], double recvVals[]) {
+	if (!encoding.equals("delta") || shared == null) {
+	    boolean single = encoding.equals("float");
+	    if (single && sendFloats == null) {
+		sendFloats = new float[ghostSend.length];
+		recvFloats = new float[ghostRecv.length];
+	    }
+	    for (int k = 0; k < ghostSend.length; k++) {
+		if (single)
+		    sendFloats[k] = (float)rankValues[ghostSend[k]];
+		else
+		    sendVals[k] = rankValues[ghostSend[k]];
+	    }
+	    MPI.COMM_WORLD.Alltoallv(single ? sendFloats : sendVals, 0, ghostSendCounts, ghostSendDispls,
+				     single ? MPI.FLOAT : MPI.DOUBLE,
+				     single ? recvFloats : recvVals, 0, ghostRecvCounts, ghostRecvDispls,
+				     single ? MPI.FLOAT : MPI.DOUBLE);
+	    unpackGhosts(recvVals);
+	    bytesSent += (single ? 4L : 8L) * ghostSend.length;
+	    if (encoding.equals("delta"))
+		shared = Arrays.copyOf(sendVals, ghostSend.length);
+	    return;
+	}
+
+	int sendCounts[] = new int[MPIsize], sendDispls[] = new int[MPIsize];
+	int n = 0;
+	for (int r = 0; r < MPIsize; r++) {
+	    sendDispls[r] = n;
+	    for (int k = ghostSendDispls[r]; k < ghostSendDispls[r] + ghostSendCounts[r]; k++) {
+		double x = rankValues[ghostSend[k]];
+		if (Math.abs(x - shared[k]) > deltaThreshold) {
+		    shared[k]         = x;
+		    deltaSendIndex[n] = k - ghostSendDispls[r];
+		    sendVals[n++]     = x;
+		}
+	    }
+	    sendCounts[r] = n - sendDispls[r];
+	}
+	int recvCounts[] = new int[MPIsize], recvDispls[] = new int[MPIsize];
+	MPI.COMM_WORLD.Alltoall(sendCounts, 0, 1, MPI.INT, recvCounts, 0, 1, MPI.INT);
+	for (int r = 1; r < MPIsize; r++)
+	    recvDispls[r] = recvDispls[r - 1] + recvCounts[r - 1];
+	MPI.COMM_WORLD.Alltoallv(deltaSendIndex, 0, sendCounts, sendDispls, MPI.INT,
+				 deltaRecvIndex, 0, recvCounts, recvDispls, MPI.INT);
+	MPI.COMM_WORLD.Alltoallv(sendVals, 0, sendCounts, sendDispls, MPI.DOUBLE,
+				 recvVals, 0, recvCounts, recvDispls, MPI.DOUBLE);
+	for (int r = 0; r < MPIsize; r++)
+	    for (int k = recvDispls[r]; k < recvDispls[r] + recvCounts[r]; k++)
+		rankValues[ghostRecv[ghostRecvDispls[r] + deltaRecvIndex[k]]] = recvVals[k];
+	bytesSent += 4L * (MPIsize - 1) + 12L * n;
+    }
+
+    /**
+     * Bound on the L1 distance of the final ranks to those of the same run with --encoding
+     * double. Every exchange perturbs the vector the next iteration reads by at most e in the
+     * L1 norm: half a float unit, 2^-24, of the sum of the ranks, which is 1, for float, and
+     * the threshold for each of the N values for delta. An iteration shrinks an earlier
+     * perturbation by df and adds df times the new one, so the distance stays below
+     * df * e / (1 - df). Extrapolation is not covered.
+     */
+    private double errorBound() {
+	double e = encoding.equals("float") ? Math.scalb(1.0, -24) : deltaThreshold * size[0];
+	return df * e / (1.0 - df);
+    }
+
+    /**
+     * Thread ranges over the first n local URLs of which, or over local URLs 0 .. n - 1 if it is
+     * null, with about equal in-links plus URLs each; the byte length of a packed list stands
+     * in for its number of links.
+     */
+    private int[] ranges(int which[], int n) {
+	int ranges[] = new int[threads + 1];
+	long total = 0;
+	for (int k = 0; k < n; k++)
+	    total += links(which == null ? k : which[k]) + 1;
+	long sum = 0;
+	for (int k = 0, t = 1; t < threads; t++) {
+	    for (; k < n && sum * threads < total * t; k++)
+		sum += links(which == null ? k : which[k]) + 1;
+	    ranges[t] = k;
+	}
+	ranges[threads] = n;
+	return ranges;
+    }
+
+    /**
+     * Update the local URLs of which, or all of them if it is null, over the thread ranges,
+     * on the pool if there is one.
+     *
+     * @return change of the values
+     */
+    private double updateAll(ExecutorService pool, int which[], int ranges[], double vals[]) {
+	if (pool == null)
+	    return update(which, ranges[0], ranges[threads], vals);
+
+	ArrayList<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+	for (int t = 0; t < threads; t++) {
+	    final int lo = ranges[t], hi = ranges[t + 1];
+	    tasks.add(() -> update(which, lo, hi, vals));
+	}
+	// combine the ranges in a fixed order so the residual does not depend on timing
+	double residual = 0.0;
+	try {
+	    for (Future<Double> f : pool.invokeAll(tasks))
+		residual = accumulate(residual, f.get());
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException(e);
+	}
+	return residual;
+    }
+
+    /**
+     * Compute the new rank values of the local URLs which[lo] .. which[hi - 1], or of
+     * offset + lo .. offset + hi - 1 if which is null, into vals. The ranges of different
+     * threads write disjoint parts of vals and only read rankValues, so they need no locking.
+     *
+     * @return change of the values over the range
+     */
+    private double update(int which[], int lo, int hi, double vals[]) {
+	double residual = 0.0;
+	for (int k = lo; k < hi; k++) {
+	    int i = which == null ? k : which[k];
+	    double pr = 0.0;
+	    if (adjBytes != null) {
+		// decode the gaps in place, one byte per gap on the common path
+		int u = 0;
+		for (int p = adjStart[i]; p < adjStart[i + 1]; ) {
+		    int b = adjBytes[p++];
+		    if (b >= 0)
+			u += b;
+		    else {
+			int gap = b & 0x7f, shift = 7;
+			while ((b = adjBytes[p++]) < 0) {
+			    gap |= (b & 0x7f) << shift;
+			    shift += 7;
+			}
+			u += gap | b << shift;
+		    }
+		    pr += rankValues[u] / (double)deg[u];
+		}
+	    }
+	    else {
+		for(int u = 0; u < adjMatrix[i].length; u++)
+		    pr += rankValues[adjMatrix[i][u]] / (double)deg[adjMatrix[i][u]];
+	    }
+
+	    if (deg[offset + i] == 0)
+		pr += rankValues[offset + i];
+
+	    vals[i] = (1.0 - df)/(double)size[0] + df * pr;
+	    residual = accumulate(residual, Math.abs(vals[i] - rankValues[offset + i]));
+	}
+	return residual;
+    }
+
+    /**
+     * Number of in-links of local URL offset + i, or with --adjacency varint the bytes of its
+     * packed list.
+     */
+    private int links(int i) {
+	return adjBytes != null ? adjStart[i + 1] - adjStart[i] : adjMatrix[i].length;
+    }
+
+    /**
+     * Print the URLs, in-links and rank update time of every rank to stderr on rank 0, and the
+     * ratio of the largest to the mean of the links and of the times. Every rank waits for the
+     * slowest at each exchange, so that ratio bounds the parallel efficiency.
+     *
+     * @param compute seconds this rank spent updating its rank values
+     */
+    private void loadReport(double compute) {
+	double local[] = { chunkSize, localLinks, compute };
+	double all[] = new double[3 * MPIsize];
+	MPI.COMM_WORLD.Gather(local, 0, 3, MPI.DOUBLE, all, 0, 3, MPI.DOUBLE, 0);
+	if (MPIrank != 0)
+	    return;
+
+	double max[] = new double[3], sum[] = new double[3];
+	for (int r = 0; r < MPIsize; r++) {
+	    System.err.println("Rank: " + r + " |  URLs: " + (long)all[3 * r] + " |  Links: " + (long)all[3 * r + 1]
+			       + " |  Compute time: " + Math.round(1000.0 * all[3 * r + 2]) + " ms");
+	    for (int j = 0; j < 3; j++) {
+		max[j] = Math.max(max[j], all[3 * r + j]);
+		sum[j] += all[3 * r + j];
+	    }
+	}
+	System.err.println("Partition: " + partition + " |  Imbalance (max/mean): links "
+			   + String.format("%.2f", max[1] * MPIsize / Math.max(1.0, sum[1])) + ", compute time "
+			   + String.format("%.2f", max[2] * MPIsize / Math.max(1e-9, sum[2])));
+    }
+
+    /**
+     * Record this rank's chunk x of the iterate after iteration iter, counting from 1, and
+     * extrapolate it in place at the end of a period, after Kamvar, Haveliwala, Manning and
+     * Golub, "Extrapolation Methods for Accelerating PageRank Computations". aitken estimates
+     * the ratio q of the dominant error term from the last three iterates and adds the rest of
+     * its geometric series, q / (1 - q) times the last step. quadratic removes the error in the
+     * span of two eigenvectors by a least squares fit over the last four iterates. The
+     * extrapolated vector is scaled back to the sum of the iterate it replaces. The products
+     * and sums over the whole vector are Allreduced, so every rank takes the same decisions.
+     */
+    private void extrapolate(int iter, double x[]) {
+	boolean quadratic = extrapolate.equals("quadratic");
+	if (hist == null)
+	    hist = new double[quadratic ? 3 : 2][chunkSize];
+	int phase = iter % extrapolatePeriod, first = extrapolatePeriod - hist.length;
+	if (phase >= first) {
+	    System.arraycopy(x, 0, hist[phase - first], 0, chunkSize);
+	    return;
+	}
+	if (phase != 0)
+	    return;
+
+	// products of the differences of the iterates, then the sum of x
+	double local[] = new double[6], sums[] = new double[6];
+	double x0[] = hist[0], x1[] = hist[1], x2[] = quadratic ? hist[2] : null;
+	for (int i = 0; i < chunkSize; i++) {
+	    if (quadratic) {
+		double y1 = x1[i] - x0[i], y2 = x2[i] - x0[i], y3 = x[i] - x0[i];
+		local[0] += y1 * y1;
+		local[1] += y1 * y2;
+		local[2] += y2 * y2;
+		local[3] += y1 * y3;
+		local[4] += y2 * y3;
+	    }
+	    else {
+		double g = x[i] - x1[i], prev = x1[i] - x0[i];
+		local[0] += g * prev;
+		local[1] += prev * prev;
+	    }
+	    local[5] += x[i];
+	}
+	MPI.COMM_WORLD.Allreduce(local, 0, sums, 0, 6, MPI.DOUBLE, MPI.SUM);
+
+	if (quadratic) {
+	    double a = sums[0], b = sums[1], c = sums[2], d = sums[3], e = sums[4];
+	    double det = a * c - b * b;
+	    // skip when the differences are too close to parallel for the fit
+	    if (!(det > 1e-12 * a * c))
+		return;
+	    double g1 = -(c * d - b * e) / det, g2 = -(a * e - b * d) / det;
+	    for (int i = 0; i < chunkSize; i++)
+		x[i] = (g1 + g2 + 1.0) * x1[i] + (g2 + 1.0) * x2[i] + x[i];
+	}
+	else {
+	    double q = sums[1] > 0.0 ? sums[0] / sums[1] : 0.0;
+	    if (!(Math.abs(q) < 1.0) || q == 0.0)
+		return;
+	    for (int i = 0; i < chunkSize; i++)
+		x[i] += (x[i] - x1[i]) * q / (1.0 - q);
+	}
+
+	double now[] = new double[1], total[] = new double[1];
+	for (int i = 0; i < chunkSize; i++)
+	    now[0] += x[i];
+	MPI.COMM_WORLD.Allreduce(now, 0, total, 0, 1, MPI.DOUBLE, MPI.SUM);
+	for (int i = 0; i < chunkSize; i++)
+	    x[i] *= sums[5] / total[0];
+	extrapolations++;
+    }
+
+    /**
+     * Add one URL's change to the running norm.
+     */
+    private double accumulate(double residual, double change) {
+	return norm.equals("l1") ? residual + change : Math.max(residual, change);
     }
 
     /**
      * Print the pagerank values. Before printing you should sort them according to decreasing order.
      * Print all the values to the output file. Print only the first 10 values to console.
      *
+     * Called on every rank. With --output distributed each rank ranks its own chunk; the 10
+     * (or --top k) highest of every rank are merged on rank 0 for the console, and the complete
+     * ranking is sample sorted across the ranks, each writing its contiguous part of the output
+     * files at its offset, see sampleSort and writeParts. With --output gather rank 0 ranks and
+     * writes the gathered vector alone, see printGathered.
+     *
      * @throws IOException if an error occurs
      */
-    Comparator<Map.Entry<Integer, Double>> comp = (p1, p2) -> {
-        if (p1.getValue() < p2.getValue())
-            return 1;
-        else if (p1.getValue() > p2.getValue())
-            return -1;
-        
-        return p1.getKey() - p2.getKey();
-    };
-              
     public void printValues() throws IOException {
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile));
-        ArrayList<Map.Entry<Integer, Double>> lst = new ArrayList<Map.Entry<Integer, Double>>();
-
-	for (int i=0; i < size[0]; ++i)
-	    lst.add(new AbstractMap.SimpleEntry<Integer, Double>(i, rankValues[i]));
-        Collections.sort(lst, comp);
-        for (int i = 0; i < size[0]; ++i) {
-            Map.Entry<Integer, Double> v = lst.get(i);
-            if (i < 10)
-                System.out.println("Page: " + v.getKey() + " |  Rank: " + v.getValue());
-            writer.write("Page: " + v.getKey() + " |  Rank: " + v.getValue() + "\n");
+	if (output.equals("gather")) {
+	    if (MPIrank == 0)
+		printGathered();
+	    return;
+	}
+	double start = MPI.Wtime();
+
+	// URL numbers of the input of the local URLs; with lp they still increase within a rank
+	int urls[] = new int[chunkSize];
+	if (perm == null) {
+	    for (int i = 0; i < chunkSize; i++)
+		urls[i] = offset + i;
+	}
+	else {
+	    for (int v = 0; v < size[0]; v++)
+		if (perm[v] >= offset && perm[v] < offset + chunkSize)
+		    urls[perm[v] - offset] = v;
+	}
+
+	// the local order, ties by increasing index and thus URL
+	int local[] = top > 0 ? top(chunkValues, top) : order(chunkValues);
+	double sortedVals[] = new double[local.length];
+	int sortedUrls[] = new int[local.length];
+	for (int i = 0; i < local.length; i++) {
+	    sortedVals[i] = chunkValues[local[i]];
+	    sortedUrls[i] = urls[local[i]];
+	}
+
+	int k = Math.min(top > 0 ? top : 10, size[0]);
+	double bestVals[] = new double[k];
+	int bestUrls[] = new int[k];
+	int best = mergeTop(sortedVals, sortedUrls, k, bestVals, bestUrls);
+	if (MPIrank == 0) {
+	    for (int i = 0; i < Math.min(10, best); ++i)
+		System.out.println("Page: " + bestUrls[i] + " |  Rank: " + bestVals[i]);
+	}
+
+	if (top > 0) {
+	    // k lines only, written by rank 0
+	    if (MPIrank == 0) {
+		try (FileOutputStream out = new FileOutputStream(outputFile)) {
+		    out.write(format(bestVals, bestUrls, best));
+		}
+		if (binaryOutput != null) {
+		    try (FileOutputStream out = new FileOutputStream(binaryOutput)) {
+			out.write(records(bestVals, bestUrls, best).array());
+		    }
+		}
+	    }
+	    return;
+	}
+
+	int part = sampleSort(sortedVals, sortedUrls);
+
+	int parts[] = { part }, largest[] = new int[1];
+	MPI.COMM_WORLD.Reduce(parts, 0, largest, 0, 1, MPI.INT, MPI.MAX, 0);
+	if (MPIrank == 0)
+	    System.err.println("Output: distributed |  Largest part: " + largest[0] + " of " + size[0]
+			       + " URLs |  Sort and write time: " + Math.round(1000.0 * (MPI.Wtime() - start)) + " ms");
+    }
+
+    /**
+     * The k highest ranked URLs of all ranks on rank 0: every rank sends the first k of its
+     * ranked values and URLs, and rank 0 ranks the at most k * P of them.
+     *
+     * @return number of URLs put into bestVals and bestUrls on rank 0
+     */
+    private int mergeTop(double vals[], int urls[], int k, double bestVals[], int bestUrls[]) {
+	int counts[] = new int[MPIsize], displs[] = new int[MPIsize];
+	int mine[] = { Math.min(k, vals.length) };
+	MPI.COMM_WORLD.Gather(mine, 0, 1, MPI.INT, counts, 0, 1, MPI.INT, 0);
+	for (int r = 1; r < MPIsize; r++)
+	    displs[r] = displs[r - 1] + counts[r - 1];
+	int n = displs[MPIsize - 1] + counts[MPIsize - 1];
+	double candVals[] = new double[n];
+	int candUrls[] = new int[n];
+	MPI.COMM_WORLD.Gatherv(vals, 0, mine[0], MPI.DOUBLE, candVals, 0, counts, displs, MPI.DOUBLE, 0);
+	MPI.COMM_WORLD.Gatherv(urls, 0, mine[0], MPI.INT, candUrls, 0, counts, displs, MPI.INT, 0);
+	if (MPIrank != 0)
+	    return 0;
+
+	int order[] = orderPairs(candVals, candUrls, n);
+	int m = Math.min(k, n);
+	for (int i = 0; i < m; i++) {
+	    bestVals[i] = candVals[order[i]];
+	    bestUrls[i] = candUrls[order[i]];
+	}
+	return m;
+    }
+
+    /**
+     * Sample sort of the ranked values and URLs of all ranks, after each rank ranked its own:
+     * every rank draws regular samples of its ranking, SAMPLES * P over all ranks shared in
+     * proportion to their URLs, the P - 1 splitters are taken at regular positions of all
+     * samples, and one Alltoallv sends every rank the values between its two splitters, which it
+     * ranks. Rank r then holds the r-th contiguous part of the complete ranking, of about N / P
+     * URLs, and writes it to the output files at its offset, see writeParts.
+     *
+     * @param vals this rank's values, by decreasing rank
+     * @param urls their URLs
+     * @return number of URLs in this rank's part
+     */
+    private int sampleSort(double vals[], int urls[]) throws IOException {
+	int n = vals.length;
+	// in proportion to the URLs, so that every sample stands for about as many of them
+	int s = (int)Math.min(n, ((long)SAMPLES * MPIsize * n + size[0] - 1) / size[0]);
+	double sampleVals[] = new double[s];
+	int sampleUrls[] = new int[s];
+	for (int i = 0; i < s; i++) {
+	    sampleVals[i] = vals[(int)((long)i * n / s)];
+	    sampleUrls[i] = urls[(int)((long)i * n / s)];
+	}
+	int counts[] = new int[MPIsize], displs[] = new int[MPIsize];
+	MPI.COMM_WORLD.Allgather(new int[] { s }, 0, 1, MPI.INT, counts, 0, 1, MPI.INT);
+	for (int r = 1; r < MPIsize; r++)
+	    displs[r] = displs[r - 1] + counts[r - 1];
+	int m = displs[MPIsize - 1] + counts[MPIsize - 1];
+	double allVals[] = new double[m];
+	int allUrls[] = new int[m];
+	MPI.COMM_WORLD.Allgatherv(sampleVals, 0, s, MPI.DOUBLE, allVals, 0, counts, displs, MPI.DOUBLE);
+	MPI.COMM_WORLD.Allgatherv(sampleUrls, 0, s, MPI.INT, allUrls, 0, counts, displs, MPI.INT);
+	int samples[] = orderPairs(allVals, allUrls, m);
+
+	// rank r receives the values from splitter r - 1 up to splitter r
+	int sendCounts[] = new int[MPIsize], sendDispls[] = new int[MPIsize];
+	for (int r = 0, from = 0; r < MPIsize; r++) {
+	    int to = n;
+	    if (r < MPIsize - 1 && m > 0) {
+		int split = samples[(int)((long)(r + 1) * m / MPIsize)];
+		long key = descending(allVals[split]);
+		int lo = from, hi = n;
+		while (lo < hi) {
+		    int mid = (lo + hi) >>> 1;
+		    if (below(key, allUrls[split], descending(vals[mid]), urls[mid]))
+			lo = mid + 1;
+		    else
+			hi = mid;
+		}
+		to = lo;
+	    }
+	    sendDispls[r] = from;
+	    sendCounts[r] = to - from;
+	    from = to;
+	}
+	int recvCounts[] = new int[MPIsize], recvDispls[] = new int[MPIsize];
+	MPI.COMM_WORLD.Alltoall(sendCounts, 0, 1, MPI.INT, recvCounts, 0, 1, MPI.INT);
+	for (int r = 1; r < MPIsize; r++)
+	    recvDispls[r] = recvDispls[r - 1] + recvCounts[r - 1];
+	int part = recvDispls[MPIsize - 1] + recvCounts[MPIsize - 1];
+	double recvVals[] = new double[part];
+	int recvUrls[] = new int[part];
+	MPI.COMM_WORLD.Alltoallv(vals, 0, sendCounts, sendDispls, MPI.DOUBLE,
+				 recvVals, 0, recvCounts, recvDispls, MPI.DOUBLE);
+	MPI.COMM_WORLD.Alltoallv(urls, 0, sendCounts, sendDispls, MPI.INT,
+				 recvUrls, 0, recvCounts, recvDispls, MPI.INT);
+
+	int order[] = orderPairs(recvVals, recvUrls, part);
+	double partVals[] = new double[part];
+	int partUrls[] = new int[part];
+	for (int i = 0; i < part; i++) {
+	    partVals[i] = recvVals[order[i]];
+	    partUrls[i] = recvUrls[order[i]];
+	}
+	writeParts(outputFile, ByteBuffer.wrap(format(partVals, partUrls, part)));
+	if (binaryOutput != null)
+	    writeParts(binaryOutput, records(partVals, partUrls, part));
+	return part;
+    }
+
+    /**
+     * Write every rank's buffer to one file, in rank order: the offset of each part is the sum
+     * of the lengths before it, from a Scan, and each rank writes its part with positional
+     * writes after rank 0 has emptied the file. Only a regular file is emptied, so devices such
+     * as /dev/null can be written too. The outcome of rank 0's open and of every rank's write is
+     * shared, see failTogether, so an error makes all ranks throw instead of leaving the others
+     * waiting.
+     */
+    private void writeParts(String file, ByteBuffer buf) throws IOException {
+	long length[] = { buf.remaining() }, end[] = new long[1];
+	MPI.COMM_WORLD.Scan(length, 0, end, 0, 1, MPI.LONG, MPI.SUM);
+	IOException error = null;
+	if (MPIrank == 0) {
+	    try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+		if (new File(file).isFile())
+		    f.setLength(0);
+	    }
+	    catch (IOException e) {
+		error = e;
+	    }
+	}
+	failTogether(error);
+
+	try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+	    FileChannel channel = f.getChannel();
+	    for (long at = end[0] - length[0]; buf.hasRemaining(); )
+		at += channel.write(buf, at);
+	}
+	catch (IOException e) {
+	    error = e;
+	}
+	failTogether(error);
+    }
+
+    /**
+     * Throw on every rank if any rank has an error, collectively: the error of the lowest such
+     * rank is rethrown there and its message broadcast to the others, so that all ranks fail
+     * with the same message instead of the others waiting in the next collective call.
+     *
+     * @param error this rank's error, or null
+     */
+    private void failTogether(IOException error) throws IOException {
+	int mine[] = { error == null ? MPIsize : MPIrank }, first[] = new int[1];
+	MPI.COMM_WORLD.Allreduce(mine, 0, first, 0, 1, MPI.INT, MPI.MIN);
+	if (first[0] == MPIsize)
+	    return;
+
+	byte message[] = first[0] == MPIrank ? String.valueOf(error.getMessage()).getBytes("UTF-8") : null;
+	int length[] = { message == null ? 0 : message.length };
+	MPI.COMM_WORLD.Bcast(length, 0, 1, MPI.INT, first[0]);
+	if (message == null)
+	    message = new byte[length[0]];
+	MPI.COMM_WORLD.Bcast(message, 0, length[0], MPI.BYTE, first[0]);
+	if (first[0] == MPIrank)
+	    throw error;
+	throw new IOException(new String(message, "UTF-8"));
+    }
+
+    /**
+     * The output lines of the first n values and URLs, as US-ASCII.
+     */
+    static byte[] format(double vals[], int urls[], int n) throws IOException {
+	StringBuilder buf = new StringBuilder();
+	for (int i = 0; i < n; ++i)
+	    buf.append("Page: ").append(urls[i]).append(" |  Rank: ").append(vals[i]).append('\n');
+	return buf.toString().getBytes("US-ASCII");
+    }
+
+    /**
+     * The binary output records of the first n values and URLs, see printGathered.
+     */
+    static ByteBuffer records(double vals[], int urls[], int n) {
+	ByteBuffer buf = ByteBuffer.allocate(12 * n).order(ByteOrder.LITTLE_ENDIAN);
+	for (int i = 0; i < n; i++)
+	    buf.putInt(urls[i]).putDouble(vals[i]);
+	buf.flip();
+	return buf;
+    }
+
+    /**
+     * Positions of n (value, URL) pairs by decreasing value, ties by increasing URL, when the
+     * URLs are in no particular order: the pairs are sorted by URL first, so that the ties of
+     * order fall in URL order.
+     */
+    static int[] orderPairs(double vals[], int urls[], int n) {
+	long byUrl[] = new long[n];
+	for (int i = 0; i < n; i++)
+	    byUrl[i] = (long)urls[i] << 32 | i;
+	Arrays.sort(byUrl);
+	double r[] = new double[n];
+	for (int i = 0; i < n; i++)
+	    r[i] = vals[(int)byUrl[i]];
+	int order[] = order(r);
+	for (int i = 0; i < n; i++)
+	    order[i] = (int)byUrl[order[i]];
+	return order;
+    }
+
+    /**
+     * Rank and write the vector gathered on rank 0, for --output gather.
+     *
+     * The URLs are ranked on primitive arrays, see order and top, and the lines are formatted
+     * in large blocks. With --binary-output the ranking is also written as (url, rank) records,
+     * a little-endian int and double each.
+     *
+     * @throws IOException if an error occurs
+     */
+    private void printGathered() throws IOException {
+	int order[] = top > 0 ? top(rankValues, top) : order(rankValues);
+
+	for (int i = 0; i < Math.min(10, order.length); ++i)
+	    System.out.println("Page: " + order[i] + " |  Rank: " + rankValues[order[i]]);
+	try (Writer writer = new OutputStreamWriter(new FileOutputStream(outputFile), "US-ASCII")) {
+	    StringBuilder buf = new StringBuilder();
+	    for (int i = 0; i < order.length; ++i) {
+		buf.append("Page: ").append(order[i]).append(" |  Rank: ").append(rankValues[order[i]]).append('\n');
+		if (buf.length() >= 1 << 20 || i == order.length - 1) {
+		    writer.append(buf);
+		    buf.setLength(0);
+		}
+	    }
         }
-        writer.close();
+
+	if (binaryOutput != null) {
+	    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryOutput), 1 << 20))) {
+		for (int v : order) {
+		    out.writeInt(Integer.reverseBytes(v));
+		    out.writeLong(Long.reverseBytes(Double.doubleToLongBits(rankValues[v])));
+		}
+	    }
+	}
+    }
+
+    /**
+     * All URLs by decreasing rank, ties by increasing URL: a stable radix sort of the URL numbers
+     * on the bit pattern of their rank, 16 bits per pass.
+     */
+    static int[] order(double r[]) {
+	int n = r.length;
+	long key[] = new long[n], keyTmp[] = new long[n];
+	int url[] = new int[n], urlTmp[] = new int[n];
+	for (int v = 0; v < n; v++) {
+	    key[v] = descending(r[v]);
+	    url[v] = v;
+	}
+
+	int count[] = new int[1 << 16];
+	for (int shift = 0; shift < 64; shift += 16) {
+	    Arrays.fill(count, 0);
+	    for (int i = 0; i < n; i++)
+		count[(int)(key[i] >>> shift) & 0xffff]++;
+	    // a digit shared by every key leaves the order as it is
+	    if (n == 0 || count[(int)(key[0] >>> shift) & 0xffff] == n)
+		continue;
+	    for (int d = 0, at = 0; d < count.length; d++) {
+		int c = count[d];
+		count[d] = at;
+		at += c;
+	    }
+	    for (int i = 0; i < n; i++) {
+		int to = count[(int)(key[i] >>> shift) & 0xffff]++;
+		keyTmp[to] = key[i];
+		urlTmp[to] = url[i];
+	    }
+	    long k[] = key; key = keyTmp; keyTmp = k;
+	    int u[] = url; url = urlTmp; urlTmp = u;
+	}
+	return url;
+    }
+
+    /**
+     * The k highest ranked URLs in the order of order(r), found with a heap of k URLs whose root
+     * is the lowest ranked of them.
+     */
+    static int[] top(double r[], int k) {
+	k = Math.min(k, r.length);
+	long heap[] = new long[k];
+	int url[] = new int[k];
+	int n = 0;
+	for (int v = 0; v < r.length; v++) {
+	    long key = descending(r[v]);
+	    int i;
+	    if (n < k) {
+		for (i = n++; i > 0 && below(key, v, heap[(i - 1) / 2], url[(i - 1) / 2]); i = (i - 1) / 2) {
+		    heap[i] = heap[(i - 1) / 2];
+		    url[i]  = url[(i - 1) / 2];
+		}
+	    }
+	    else if (k > 0 && below(heap[0], url[0], key, v)) {
+		for (i = 0; 2 * i + 1 < k; ) {
+		    int c = 2 * i + 1;
+		    if (c + 1 < k && below(heap[c + 1], url[c + 1], heap[c], url[c]))
+			c++;
+		    if (!below(heap[c], url[c], key, v))
+			break;
+		    heap[i] = heap[c];
+		    url[i]  = url[c];
+		    i = c;
+		}
+	    }
+	    else
+		continue;
+	    heap[i] = key;
+	    url[i]  = v;
+	}
+
+	// order is stable, so ties keep the increasing URLs
+	Arrays.sort(url);
+	double kept[] = new double[k];
+	for (int i = 0; i < k; i++)
+	    kept[i] = r[url[i]];
+	int byRank[] = order(kept);
+	int result[] = new int[k];
+	for (int i = 0; i < k; i++)
+	    result[i] = url[byRank[i]];
+	return result;
+    }
+
+    /**
+     * Whether URL u with key a ranks below URL v with key b.
+     */
+    private static boolean below(long a, int u, long b, int v) {
+	int c = Long.compareUnsigned(a, b);
+	return c > 0 || c == 0 && u > v;
+    }
+
+    /**
+     * Map a rank to a key whose unsigned order is the decreasing order of the ranks.
+     */
+    private static long descending(double x) {
+	long bits = Double.doubleToLongBits(x);
+	bits ^= (bits >> 63) | Long.MIN_VALUE;
+	return ~bits;
     }
 
     public static void main(String[] args) throws IOException {
@@ -246,11 +1887,13 @@ public class MPIPageRank {
         MPIPR.MPIsize = MPI.COMM_WORLD.Size();
 
         MPIPR.parseArgs(parameters);
+	double start = MPI.Wtime();
 	MPIPR.loadInput();
+	if (MPIPR.MPIrank == 0)
+	    System.err.println("Processes: " + MPIPR.MPIsize + " |  Load time: "
+			       + Math.round(1000.0 * (MPI.Wtime() - start)) + " ms");
 	MPIPR.calculatePageRank();
-	if (MPIPR.MPIrank == 0) {
-	    MPIPR.printValues();
-	}
+	MPIPR.printValues();
 	    
 	MPI.Finalize();
     }
@@ -0,0 +1,19 @@
+#!/bin/sh
+# Scaling report of MPIPageRank across process counts, for both exchanges of the rank vector.
+# Runs mpjrun.sh in MPJ Express multicore mode; MPJ_HOME must be set and MPIPageRank compiled.
+# Usage: ./scaling.sh [input] [iterations] [df] [process counts...]
+# Example: ./scaling.sh pagerank.input 100 0.85 2 4 8 16 32
+
+input=$1; iterations=$2; df=$3
+shift 3
+[ $# -eq 0 ] && set -- 2 4 8 16 32
+
+echo "processes  allgather(ms)  p2p(ms)  p2p/allgather"
+for np in "$@"; do
+    for x in allgather p2p; do
+        ms=$(mpjrun.sh -np "$np" -dev multicore MPIPageRank "$input" /dev/null "$iterations" "$df" --exchange $x --output gather 2>&1 >/dev/null \
+             | sed -n 's/.*Iteration time: \([0-9]*\) ms.*/\1/p')
+        eval "ms_$x=\$ms"
+    done
+    echo "$np $ms_allgather $ms_p2p" | awk '{ printf "%9d  %13d  %7d  %13.2f\n", $1, $2, $3, ($2 > 0 ? $3 / $2 : 0) }'
+done